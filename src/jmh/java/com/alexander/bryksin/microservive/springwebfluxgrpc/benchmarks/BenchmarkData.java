@@ -0,0 +1,44 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.benchmarks;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.Currency;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    static BankAccount bankAccount(int index) {
+        var now = LocalDateTime.of(2022, 12, 9, 15, 1, 12, 123_456_000).plusSeconds(index);
+        return BankAccount.builder()
+                .id(UUID.nameUUIDFromBytes(String.valueOf(index).getBytes()))
+                .email(String.format("user%d@example.com", index))
+                .firstName("Alexander")
+                .lastName("Bryksin")
+                .address(String.format("%d Nevsky Prospect, Saint Petersburg", index))
+                .phone(String.format("+7%09d", index))
+                .currency(index % 2 == 0 ? Currency.USD : Currency.EUR)
+                .balance(BigDecimal.valueOf(index * 1234L + 56, 2))
+                .createdAt(now)
+                .updatedAt(now)
+                .build();
+    }
+
+    static List<BankAccount> bankAccounts(int size) {
+        var bankAccounts = new ArrayList<BankAccount>(size);
+        for (int i = 0; i < size; i++) bankAccounts.add(bankAccount(i));
+        return bankAccounts;
+    }
+
+    static Page<BankAccount> page(int size) {
+        return new PageImpl<>(bankAccounts(size), PageRequest.of(3, size), size * 100L);
+    }
+}
@@ -0,0 +1,73 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.benchmarks;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.BankAccountSuccessResponseDto;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.mappers.BankAccountMapper;
+import com.grpc.bankService.BankAccountData;
+import com.grpc.bankService.GetAllByBalanceWithPaginationResponse;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.domain.Page;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-response mapping cost of the gRPC and HTTP delivery layers, single accounts and whole pages.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+
+    // single-account benchmarks get their own state, so they are not repeated for every page size
+    @State(Scope.Benchmark)
+    public static class AccountState {
+
+        private BankAccount bankAccount;
+
+        @Setup
+        public void setup() {
+            bankAccount = BenchmarkData.bankAccount(42);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class PageState {
+
+        @Param({"10", "100", "1000", "10000"})
+        private int pageSize;
+
+        private Page<BankAccount> page;
+
+        @Setup
+        public void setup() {
+            page = BenchmarkData.page(pageSize);
+        }
+    }
+
+    @Benchmark
+    public BankAccountData toGrpc(AccountState state) {
+        return BankAccountMapper.toGrpc(state.bankAccount);
+    }
+
+    @Benchmark
+    public BankAccountSuccessResponseDto toSuccessHttpResponse(AccountState state) {
+        return BankAccountMapper.toSuccessHttpResponse(state.bankAccount);
+    }
+
+    @Benchmark
+    public GetAllByBalanceWithPaginationResponse toPaginationGrpcResponse(PageState state) {
+        return BankAccountMapper.toPaginationGrpcResponse(state.page);
+    }
+
+    @Benchmark
+    public byte[] toPaginationGrpcResponseSerialized(PageState state) {
+        return BankAccountMapper.toPaginationGrpcResponse(state.page).toByteArray();
+    }
+
+    @Benchmark
+    public Page<BankAccountSuccessResponseDto> toSuccessHttpResponsePage(PageState state) {
+        return state.page.map(BankAccountMapper::toSuccessHttpResponse);
+    }
+}
@@ -0,0 +1,82 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.benchmarks;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.mappers.BankAccountMapper;
+import com.grpc.bankService.BankAccountData;
+import com.grpc.bankService.MoneyV1;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Legacy double balance encoding against the exact MoneyV1 encoding, both directions and through a full
+ * serialize / parse round trip of BankAccountData.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoneyMapperBenchmark {
+
+    @Param({"0.00", "1250.50", "499999.99", "12345678901234.56"})
+    private String balance;
+
+    private BigDecimal decimal;
+    private double legacyValue;
+    private MoneyV1 money;
+    private byte[] legacyMessage;
+    private byte[] moneyMessage;
+
+    @Setup
+    public void setup() {
+        decimal = new BigDecimal(balance);
+        legacyValue = decimal.doubleValue();
+        money = BankAccountMapper.toMoney(decimal);
+        legacyMessage = BankAccountData.newBuilder().setBalance(legacyValue).build().toByteArray();
+        moneyMessage = BankAccountData.newBuilder().setBalanceMoney(money).build().toByteArray();
+    }
+
+    @Benchmark
+    public double encodeDouble() {
+        return decimal.doubleValue();
+    }
+
+    @Benchmark
+    public MoneyV1 encodeMoney() {
+        return BankAccountMapper.toMoney(decimal);
+    }
+
+    @Benchmark
+    public BigDecimal decodeDouble() {
+        return BigDecimal.valueOf(legacyValue);
+    }
+
+    @Benchmark
+    public BigDecimal decodeMoney() {
+        return BankAccountMapper.fromMoney(money);
+    }
+
+    @Benchmark
+    public BigDecimal roundTripDouble() throws Exception {
+        var bytes = BankAccountData.newBuilder().setBalance(decimal.doubleValue()).build().toByteArray();
+        return BigDecimal.valueOf(BankAccountData.parseFrom(bytes).getBalance());
+    }
+
+    @Benchmark
+    public BigDecimal roundTripMoney() throws Exception {
+        var bytes = BankAccountData.newBuilder().setBalanceMoney(BankAccountMapper.toMoney(decimal)).build().toByteArray();
+        return BankAccountMapper.fromMoney(BankAccountData.parseFrom(bytes).getBalanceMoney());
+    }
+
+    @Benchmark
+    public BigDecimal parseDouble() throws Exception {
+        return BigDecimal.valueOf(BankAccountData.parseFrom(legacyMessage).getBalance());
+    }
+
+    @Benchmark
+    public BigDecimal parseMoney() throws Exception {
+        return BankAccountMapper.fromMoney(BankAccountData.parseFrom(moneyMessage).getBalanceMoney());
+    }
+}
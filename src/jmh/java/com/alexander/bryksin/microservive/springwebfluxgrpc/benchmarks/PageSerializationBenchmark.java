@@ -0,0 +1,40 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.benchmarks;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.BankAccountSuccessResponseDto;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.mappers.BankAccountMapper;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.domain.Page;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson serialization of the all/balance HTTP response body, with the ObjectMapper configured the same way
+ * Spring Boot configures the WebFlux codecs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageSerializationBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    private int pageSize;
+
+    private ObjectMapper objectMapper;
+    private Page<BankAccountSuccessResponseDto> page;
+
+    @Setup
+    public void setup() {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        page = BenchmarkData.page(pageSize).map(BankAccountMapper::toSuccessHttpResponse);
+    }
+
+    @Benchmark
+    public byte[] serializePage() throws Exception {
+        return objectMapper.writeValueAsBytes(page);
+    }
+}
@@ -0,0 +1,44 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.benchmarks;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.mappers.BankAccountMapper;
+import io.grpc.Codec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of gzip message compression for paginated gRPC responses with the compressor grpc-java uses,
+ * the compressed sizes are printed once at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseCompressionBenchmark {
+
+    private static final Codec GZIP = new Codec.Gzip();
+
+    @Param({"100", "1000", "10000"})
+    private int pageSize;
+
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws IOException {
+        serialized = BankAccountMapper.toPaginationGrpcResponse(BenchmarkData.page(pageSize)).toByteArray();
+        System.out.printf("%npage of %d: %d bytes, gzip %d bytes%n", pageSize, serialized.length, gzip().length);
+    }
+
+    @Benchmark
+    public byte[] gzip() throws IOException {
+        var out = new ByteArrayOutputStream(serialized.length / 4);
+        try (var compressed = GZIP.compress(out)) {
+            compressed.write(serialized);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,48 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.benchmarks;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.mappers.BankAccountMapper;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the same accounts as one columnar snapshot batch and as one paginated gRPC response,
+ * the encoded sizes are printed once at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int batchSize;
+
+    private List<BankAccount> bankAccounts;
+    private Page<BankAccount> page;
+
+    @Setup
+    public void setup() {
+        bankAccounts = BenchmarkData.bankAccounts(batchSize);
+        page = new PageImpl<>(bankAccounts, PageRequest.of(0, batchSize), batchSize);
+        System.out.printf("%n%d accounts: snapshot batch %d bytes, paginated response %d bytes%n",
+                batchSize, snapshotBatchSerialized().length, paginationResponseSerialized().length);
+    }
+
+    @Benchmark
+    public byte[] snapshotBatchSerialized() {
+        return BankAccountMapper.toSnapshotBatch(bankAccounts).toByteArray();
+    }
+
+    @Benchmark
+    public byte[] paginationResponseSerialized() {
+        return BankAccountMapper.toPaginationGrpcResponse(page).toByteArray();
+    }
+}
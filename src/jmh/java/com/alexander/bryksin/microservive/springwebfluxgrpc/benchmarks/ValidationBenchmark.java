@@ -0,0 +1,69 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.benchmarks;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.mappers.BankAccountMapper;
+import com.grpc.bankService.CreateBankAccountRequest;
+import org.openjdk.jmh.annotations.*;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validation;
+import javax.validation.Validator;
+import javax.validation.ValidatorFactory;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of BankAccountGrpcService.validate on the createBankAccount path: request mapping plus bean validation,
+ * for a valid account and for one with several violations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+
+    private ValidatorFactory validatorFactory;
+    private Validator validator;
+    private CreateBankAccountRequest validRequest;
+    private BankAccount validBankAccount;
+    private BankAccount invalidBankAccount;
+
+    @Setup
+    public void setup() {
+        validatorFactory = Validation.buildDefaultValidatorFactory();
+        validator = validatorFactory.getValidator();
+        validRequest = CreateBankAccountRequest.newBuilder()
+                .setEmail("alexander.bryksin@yandex.ru")
+                .setFirstName("Alexander")
+                .setLastName("Bryksin")
+                .setAddress("Nevsky Prospect, Saint Petersburg")
+                .setPhone("+79001234")
+                .setCurrency("USD")
+                .setBalance(1250.50)
+                .build();
+        validBankAccount = BankAccountMapper.of(validRequest);
+        invalidBankAccount = validBankAccount.toBuilder().email("invalid").firstName("A").phone("1").build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        validatorFactory.close();
+    }
+
+    @Benchmark
+    public Set<ConstraintViolation<BankAccount>> validateValid() {
+        return validator.validate(validBankAccount);
+    }
+
+    @Benchmark
+    public Set<ConstraintViolation<BankAccount>> validateInvalid() {
+        return validator.validate(invalidBankAccount);
+    }
+
+    @Benchmark
+    public Set<ConstraintViolation<BankAccount>> mapAndValidate() {
+        return validator.validate(BankAccountMapper.of(validRequest));
+    }
+}
@@ -0,0 +1,71 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Caches total counts per (min, max) balance range. Write paths report balance transitions so the cached
+ * counts are adjusted in place instead of being dropped, TTL bounds the drift caused by concurrent writes.
+ * Writes report only committed transitions, a rolled back write must not leave its adjustment behind.
+ */
+@Slf4j
+@Component
+public class BalanceRangeCountCache {
+
+    private final Cache<BalanceRange, AtomicLong> cache;
+
+    public BalanceRangeCountCache(@Value(value = "${bank-account.count.cache.max-size:1000}") long maxSize,
+                                  @Value(value = "${bank-account.count.cache.ttl:30s}") Duration ttl) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .build();
+    }
+
+    public Mono<Long> get(BigDecimal min, BigDecimal max, Supplier<Mono<Long>> loader) {
+        var range = new BalanceRange(min, max);
+        return Mono.defer(() -> {
+            var count = cache.getIfPresent(range);
+            if (count != null) return Mono.just(count.get());
+            return loader.get().doOnNext(total -> cache.put(range, new AtomicLong(total)));
+        });
+    }
+
+    /**
+     * Walks every cached range, so each committed write costs O(cached ranges), bounded by
+     * {@code bank-account.count.cache.max-size}. Keep that size small when writes are frequent.
+     *
+     * @param oldBalance balance before the write or null for a created account
+     * @param newBalance balance after the write
+     */
+    public void onBalanceChanged(BigDecimal oldBalance, BigDecimal newBalance) {
+        cache.asMap().forEach((range, count) -> {
+            var delta = (range.contains(newBalance) ? 1 : 0) - (oldBalance != null && range.contains(oldBalance) ? 1 : 0);
+            if (delta != 0) count.addAndGet(delta);
+        });
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private record BalanceRange(BigDecimal min, BigDecimal max) {
+        BalanceRange {
+            min = min.stripTrailingZeros();
+            max = max.stripTrailingZeros();
+        }
+
+        boolean contains(BigDecimal balance) {
+            return balance.compareTo(min) >= 0 && balance.compareTo(max) <= 0;
+        }
+    }
+}
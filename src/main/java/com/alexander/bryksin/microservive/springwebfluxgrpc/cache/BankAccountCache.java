@@ -0,0 +1,71 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.cache;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineStatsCounter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Read-through cache of bank accounts by id. Concurrent misses for the same id share a single load,
+ * hit/miss/eviction counters and load timings are published as cache.* meters with cache=bankAccounts.
+ * Every caller subscribes to its own copy of the shared future, so a caller that cancels does not cancel
+ * the load the other callers are waiting for.
+ */
+@Slf4j
+@Component
+public class BankAccountCache {
+
+    private static final String CACHE_NAME = "bankAccounts";
+
+    private final AsyncCache<UUID, BankAccount> cache;
+    private final boolean enabled;
+
+    public BankAccountCache(MeterRegistry meterRegistry,
+                            @Value(value = "${bank-account.cache.enabled:true}") boolean enabled,
+                            @Value(value = "${bank-account.cache.max-size:100000}") long maxSize,
+                            @Value(value = "${bank-account.cache.ttl:60s}") Duration ttl) {
+        this.enabled = enabled;
+        var statsCounter = new CaffeineStatsCounter(meterRegistry, CACHE_NAME);
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats(() -> statsCounter)
+                .buildAsync();
+        statsCounter.registerSizeMetric(cache.synchronous());
+    }
+
+    public Mono<BankAccount> get(UUID id, Function<UUID, Mono<BankAccount>> loader) {
+        if (!enabled) return loader.apply(id);
+        return Mono.fromFuture(() -> cache.get(id, (key, executor) -> loader.apply(key).toFuture()).copy());
+    }
+
+    /**
+     * Serves the cached accounts and loads all missing ids with a single loader call, ids that do not exist are skipped.
+     */
+    public Flux<BankAccount> getAll(Collection<UUID> ids, Function<Collection<UUID>, Flux<BankAccount>> loader) {
+        if (!enabled) return loader.apply(ids);
+        return Mono.fromFuture(() -> cache.getAll(ids, (keys, executor) -> {
+                    var missingIds = new ArrayList<UUID>();
+                    keys.forEach(missingIds::add);
+                    return loader.apply(missingIds).collectMap(BankAccount::getId).toFuture();
+                }).copy())
+                .flatMapIterable(Map::values);
+    }
+
+    public void invalidate(UUID id) {
+        if (enabled) cache.synchronous().invalidate(id);
+    }
+}
@@ -0,0 +1,43 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.cache;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.IdempotencyRecord;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineStatsCounter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Recently committed idempotency records, so retries are answered without a database round trip.
+ * Only committed records are put here, the idempotency_keys table stays the source of truth.
+ */
+@Component
+public class IdempotencyKeyCache {
+
+    private static final String CACHE_NAME = "idempotencyKeys";
+
+    private final Cache<String, IdempotencyRecord> cache;
+
+    public IdempotencyKeyCache(MeterRegistry meterRegistry,
+                               @Value(value = "${bank-account.idempotency.cache.max-size:100000}") long maxSize,
+                               @Value(value = "${bank-account.idempotency.cache.ttl:10m}") Duration ttl) {
+        var statsCounter = new CaffeineStatsCounter(meterRegistry, CACHE_NAME);
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats(() -> statsCounter)
+                .build();
+        statsCounter.registerSizeMetric(cache);
+    }
+
+    public IdempotencyRecord get(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    public void put(IdempotencyRecord record) {
+        cache.put(record.key(), record);
+    }
+}
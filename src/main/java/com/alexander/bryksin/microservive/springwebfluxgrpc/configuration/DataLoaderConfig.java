@@ -28,24 +28,26 @@ public class DataLoaderConfig implements CommandLineRunner {
     @Value(value = "${faker.count:1000}")
     private Integer count = 1000;
 
+    @Value(value = "${bank-account.bulk-create.batch-size:500}")
+    private Integer batchSize = 500;
+
 
     @Override
     public void run(String... args) {
         Flux.range(0, count)
-                .flatMap(v -> {
-                    var bankAccount = BankAccount.builder()
-                            .email(faker.internet().emailAddress())
-                            .firstName(faker.name().firstName())
-                            .lastName(faker.name().lastName())
-                            .address(faker.address().fullAddress())
-                            .phone(faker.phoneNumber().cellPhone())
-                            .balance(BigDecimal.valueOf(faker.number().numberBetween(0, 500000)))
-                            .currency(Currency.USD)
-                            .createdAt(LocalDateTime.now())
-                            .updatedAt(LocalDateTime.now())
-                            .build();
-                    return bankAccountService.createBankAccount(bankAccount);
-                })
+                .map(v -> BankAccount.builder()
+                        .email(faker.internet().emailAddress())
+                        .firstName(faker.name().firstName())
+                        .lastName(faker.name().lastName())
+                        .address(faker.address().fullAddress())
+                        .phone(faker.phoneNumber().cellPhone())
+                        .balance(BigDecimal.valueOf(faker.number().numberBetween(0, 500000)))
+                        .currency(Currency.USD)
+                        .createdAt(LocalDateTime.now())
+                        .updatedAt(LocalDateTime.now())
+                        .build())
+                .buffer(batchSize)
+                .concatMap(bankAccountService::createBankAccounts)
                 .doOnNext(bankAccount -> log.info("created bank account: {}", bankAccount))
                 .doOnError(ex -> log.error("DataLoaderConfig error: {}", ex.getLocalizedMessage()))
                 .doFinally(signalType -> log.info("mock data inserted successfully"))
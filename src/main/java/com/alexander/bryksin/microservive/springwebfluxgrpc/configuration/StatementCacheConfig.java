@@ -0,0 +1,21 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.configuration;
+
+import io.r2dbc.postgresql.PostgresqlConnectionFactoryProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.r2dbc.ConnectionFactoryOptionsBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Bounds the driver's per connection prepared statement cache, unbounded by default.
+ * Every distinct parameterized SQL is parsed once per connection and then only bound and executed,
+ * so the hot queries have to be constant SQL with bind markers to stay in the cache.
+ */
+@Configuration(proxyBeanMethods = false)
+public class StatementCacheConfig {
+
+    @Bean
+    ConnectionFactoryOptionsBuilderCustomizer statementCacheCustomizer(@Value(value = "${r2dbc.statement-cache.size:256}") int size) {
+        return builder -> builder.option(PostgresqlConnectionFactoryProvider.PREPARED_STATEMENT_CACHE_QUERIES, size);
+    }
+}
@@ -1,79 +1,138 @@
 package com.alexander.bryksin.microservive.springwebfluxgrpc.delivery.grpc;
 
-import com.alexander.bryksin.microservive.springwebfluxgrpc.interceptors.LogGrpcInterceptor;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.mappers.BankAccountMapper;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.services.BankAccountService;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.tracing.SpanTagger;
 import com.grpc.bankService.*;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import io.grpc.Status;
 import net.devh.boot.grpc.server.service.GrpcService;
-import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.sleuth.annotation.NewSpan;
+import org.springframework.util.StringUtils;
+import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
 
 import javax.validation.ConstraintViolationException;
 import javax.validation.Validator;
-import java.math.BigDecimal;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
-@GrpcService(interceptors = {LogGrpcInterceptor.class})
+@GrpcService
 @Slf4j
 @RequiredArgsConstructor
 public class BankAccountGrpcService extends ReactorBankAccountServiceGrpc.BankAccountServiceImplBase {
 
     private final BankAccountService bankAccountService;
-    private final Tracer tracer;
+    private final SpanTagger spanTagger;
     private final Validator validator;
     private static final Long TIMEOUT_MILLIS = 5000L;
 
+    @Value(value = "${bank-account.bulk-create.batch-size:500}")
+    private Integer bulkCreateBatchSize = 500;
+
+    @Value(value = "${bank-account.bulk-create.window-millis:100}")
+    private Long bulkCreateWindowMillis = 100L;
+
+    @Value(value = "${bank-account.transact.lanes:16}")
+    private Integer transactLanes = 16;
+
     @Override
     @NewSpan
     public Mono<CreateBankAccountResponse> createBankAccount(Mono<CreateBankAccountRequest> request) {
         return request.flatMap(req -> bankAccountService.createBankAccount(validate(BankAccountMapper.of(req)))
-                        .doOnNext(v -> spanTag("req", req.toString())))
+                        .doOnNext(bankAccount -> spanTagger.tag("id", bankAccount.getId())))
                 .map(bankAccount -> CreateBankAccountResponse.newBuilder().setBankAccount(BankAccountMapper.toGrpc(bankAccount)).build())
                 .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
-                .doOnError(this::spanError)
-                .doOnSuccess(result -> log.info("created account: {}", result.getBankAccount()));
+                .doOnError(spanTagger::error);
+    }
+
+    @Override
+    @NewSpan
+    public Mono<CreateBankAccountsResponse> createBankAccounts(Flux<CreateBankAccountRequest> request) {
+        var index = new AtomicInteger();
+        return request.map(req -> Tuples.of(index.getAndIncrement(), req))
+                .bufferTimeout(bulkCreateBatchSize, Duration.ofMillis(bulkCreateWindowMillis))
+                .concatMap(this::createBankAccountsBatch)
+                .collect(CreateBankAccountsResponse::newBuilder, CreateBankAccountsResponse.Builder::addResults)
+                .map(builder -> {
+                    var created = (int) builder.getResultsList().stream().filter(CreateBankAccountResult::hasBankAccount).count();
+                    return builder.setCreated(created).setFailed(builder.getResultsCount() - created).build();
+                })
+                .doOnError(spanTagger::error)
+                .doOnSuccess(response -> log.debug("created accounts: {}, failed: {}", response.getCreated(), response.getFailed()));
     }
 
     @Override
     @NewSpan
     public Mono<GetBankAccountByIdResponse> getBankAccountById(Mono<GetBankAccountByIdRequest> request) {
         return request.flatMap(req -> bankAccountService.getBankAccountById(UUID.fromString(req.getId()))
-                        .doOnNext(v -> spanTag("id", req.getId()))
-                        .doOnSuccess(bankAccount -> spanTag("bankAccount", bankAccount.toString()))
+                        .doOnNext(v -> spanTagger.tag("id", req.getId()))
                         .map(bankAccount -> GetBankAccountByIdResponse.newBuilder().setBankAccount(BankAccountMapper.toGrpc(bankAccount)).build()))
                 .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
-                .doOnError(this::spanError)
-                .doOnSuccess(response -> log.info("bankAccount: {}", response.getBankAccount()));
+                .doOnError(spanTagger::error);
     }
 
 
+    @Override
+    @NewSpan
+    public Mono<GetBankAccountsByIdsResponse> getBankAccountsByIds(Mono<GetBankAccountsByIdsRequest> request) {
+        return request.map(BankAccountMapper::idsFromGrpc)
+                .flatMap(ids -> bankAccountService.getBankAccountsByIds(ids)
+                        .collectList()
+                        .doOnNext(v -> spanTagger.tag("ids", ids.size()))
+                        .map(bankAccounts -> BankAccountMapper.toGetBankAccountsByIdsResponse(ids, bankAccounts)))
+                .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
+                .doOnError(spanTagger::error)
+                .doOnSuccess(response -> log.debug("found: {}, missing: {}", response.getBankAccountsCount(), response.getMissingIdsCount()));
+    }
+
     @Override
     @NewSpan
     public Mono<DepositBalanceResponse> depositBalance(Mono<DepositBalanceRequest> request) {
         return request
-                .flatMap(req -> bankAccountService.depositAmount(UUID.fromString(req.getId()), BigDecimal.valueOf(req.getBalance()))
-                        .doOnEach(v -> spanTag("req", req.toString()))
+                .flatMap(req -> (!StringUtils.hasText(req.getIdempotencyKey())
+                        ? bankAccountService.depositAmount(UUID.fromString(req.getId()), BankAccountMapper.amountOf(req))
+                        : bankAccountService.depositAmount(UUID.fromString(req.getId()), BankAccountMapper.amountOf(req), req.getIdempotencyKey()))
+                        .doOnNext(v -> spanTagger.tag("id", req.getId()))
                         .map(bankAccount -> DepositBalanceResponse.newBuilder().setBankAccount(BankAccountMapper.toGrpc(bankAccount)).build()))
                 .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
-                .doOnError(this::spanError)
-                .doOnSuccess(response -> log.info("bankAccount: {}", response.getBankAccount()));
+                .doOnError(spanTagger::error);
     }
 
     @Override
     @NewSpan
     public Mono<WithdrawBalanceResponse> withdrawBalance(Mono<WithdrawBalanceRequest> request) {
-        return request.flatMap(req -> bankAccountService.withdrawAmount(UUID.fromString(req.getId()), BigDecimal.valueOf(req.getBalance()))
-                        .doOnNext(v -> spanTag("req", req.toString()))
+        return request.flatMap(req -> (!StringUtils.hasText(req.getIdempotencyKey())
+                        ? bankAccountService.withdrawAmount(UUID.fromString(req.getId()), BankAccountMapper.amountOf(req))
+                        : bankAccountService.withdrawAmount(UUID.fromString(req.getId()), BankAccountMapper.amountOf(req), req.getIdempotencyKey()))
+                        .doOnNext(v -> spanTagger.tag("id", req.getId()))
                         .map(bankAccount -> WithdrawBalanceResponse.newBuilder().setBankAccount(BankAccountMapper.toGrpc(bankAccount)).build()))
                 .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
-                .doOnError(this::spanError)
-                .doOnSuccess(response -> log.info("bankAccount: {}", response.getBankAccount()));
+                .doOnError(spanTagger::error);
+    }
+
+    /**
+     * Transactions are hashed by account id onto a fixed number of lanes, each lane applies its transactions one
+     * by one so the same account is always updated in order while different lanes run in parallel.
+     */
+    @Override
+    @NewSpan
+    public Flux<TransactionResponse> transact(Flux<TransactionRequest> request) {
+        return request
+                .groupBy(req -> Math.floorMod(laneKey(req.getId()), transactLanes))
+                .flatMap(lane -> lane.concatMap(this::applyTransaction), transactLanes)
+                .doOnError(spanTagger::error);
     }
 
     @Override
@@ -81,37 +140,148 @@ public class BankAccountGrpcService extends ReactorBankAccountServiceGrpc.BankAc
     public Flux<GetAllByBalanceResponse> getAllByBalance(Mono<GetAllByBalanceRequest> request) {
         return request
                 .flatMapMany(req -> bankAccountService.findBankAccountByBalanceBetween(BankAccountMapper.findByBalanceRequestDtoFromGrpc(req))
-                        .doOnNext(v -> spanTag("req", req.toString()))
                         .map(bankAccount -> GetAllByBalanceResponse.newBuilder().setBankAccount(BankAccountMapper.toGrpc(bankAccount)).build()))
                 .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
-                .doOnError(this::spanError)
-                .doOnNext(response -> log.info("bankAccount: {}", response.getBankAccount()));
+                .doOnError(spanTagger::error);
     }
 
     @Override
     @NewSpan
     public Mono<GetAllByBalanceWithPaginationResponse> getAllByBalanceWithPagination(Mono<GetAllByBalanceWithPaginationRequest> request) {
         return request.flatMap(req -> bankAccountService.findAllBankAccountsByBalance(BankAccountMapper.findByBalanceRequestDtoFromGrpc(req))
-                        .doOnNext(v -> spanTag("req", req.toString()))
+                        .doOnNext(v -> spanTagger.tag("page", req.getPage()))
                         .map(BankAccountMapper::toPaginationGrpcResponse))
                 .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
-                .doOnError(this::spanError)
-                .doOnSuccess(response -> log.info("response: {}", response.toString()));
+                .doOnError(spanTagger::error);
     }
 
-    private <T> T validate(T data) {
-        var errors = validator.validate(data);
-        if (!errors.isEmpty()) throw new ConstraintViolationException(errors);
-        return data;
+    @Override
+    @NewSpan
+    public Mono<GetAllByBalanceWithCursorResponse> getAllByBalanceWithCursor(Mono<GetAllByBalanceWithCursorRequest> request) {
+        return request.flatMap(req -> bankAccountService.findBankAccountsByBalanceAfter(BankAccountMapper.findByBalanceCursorRequestDtoFromGrpc(req))
+                        .doOnNext(v -> spanTagger.tag("cursor", req.getCursor()))
+                        .map(BankAccountMapper::toCursorGrpcResponse))
+                .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
+                .doOnError(spanTagger::error);
+    }
+
+    /**
+     * No call timeout, the export runs as long as the client keeps reading.
+     */
+    @Override
+    @NewSpan
+    public Flux<ExportByBalanceResponse> exportByBalance(Mono<ExportByBalanceRequest> request) {
+        return request
+                .flatMapMany(req -> bankAccountService.exportBankAccountsByBalance(BankAccountMapper.minOf(req), BankAccountMapper.maxOf(req)))
+                .map(bankAccount -> ExportByBalanceResponse.newBuilder().setBankAccount(BankAccountMapper.toGrpc(bankAccount)).build())
+                .doOnError(spanTagger::error);
+    }
+
+    @Override
+    @NewSpan
+    public Flux<AccountSnapshotBatch> exportSnapshot(Mono<ExportByBalanceRequest> request) {
+        return request
+                .flatMapMany(req -> bankAccountService.exportBankAccountChunksByBalance(BankAccountMapper.minOf(req), BankAccountMapper.maxOf(req)))
+                .filter(chunk -> !chunk.isEmpty())
+                .map(BankAccountMapper::toSnapshotBatch)
+                .doOnError(spanTagger::error);
+    }
+
+    /**
+     * Never completes, a subscriber that falls behind is failed with RESOURCE_EXHAUSTED and resumes from its last offset.
+     */
+    @Override
+    @NewSpan
+    public Flux<AccountChangeEvent> subscribeAccountChanges(Mono<SubscribeAccountChangesRequest> request) {
+        return request
+                .flatMapMany(req -> bankAccountService.subscribeAccountChanges(req.getOffset()))
+                .map(BankAccountMapper::toGrpc)
+                .onErrorMap(Exceptions::isOverflow, ex -> Status.RESOURCE_EXHAUSTED.withDescription("subscriber fell behind, resume from the last received offset").asException())
+                .doOnError(spanTagger::error);
+    }
+
+    @Override
+    @NewSpan
+    public Flux<BalanceUpdate> subscribeBalanceUpdates(Mono<SubscribeBalanceUpdatesRequest> request) {
+        return request
+                .flatMapMany(req -> bankAccountService.subscribeBalanceChanges(BankAccountMapper.idsFromGrpc(req)))
+                .map(BankAccountMapper::toGrpc)
+                .doOnError(spanTagger::error);
+    }
+
+    @Override
+    @NewSpan
+    public Mono<GetBalanceStatsResponse> getBalanceStats(Mono<GetBalanceStatsRequest> request) {
+        return request
+                .flatMap(req -> bankAccountService.getBalanceStats(BankAccountMapper.minOf(req), BankAccountMapper.maxOf(req), req.getQuantilesList()))
+                .map(BankAccountMapper::toGrpc)
+                .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
+                .doOnError(spanTagger::error);
     }
 
-    private void spanTag(String key, String value) {
-        var span = tracer.currentSpan();
-        if (span != null) span.tag(key, value);
+    private Flux<CreateBankAccountResult> createBankAccountsBatch(List<Tuple2<Integer, CreateBankAccountRequest>> batch) {
+        var results = new CreateBankAccountResult[batch.size()];
+        var validPositions = new ArrayList<Integer>(batch.size());
+        var bankAccounts = new ArrayList<BankAccount>(batch.size());
+
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                bankAccounts.add(validate(BankAccountMapper.of(batch.get(i).getT2())));
+                validPositions.add(i);
+            } catch (RuntimeException ex) {
+                results[i] = CreateBankAccountResult.newBuilder().setIndex(batch.get(i).getT1()).setError(ex.getLocalizedMessage()).build();
+            }
+        }
+
+        return bankAccountService.createBankAccounts(bankAccounts)
+                .collectMap(BankAccount::getEmail)
+                .flatMapIterable(created -> {
+                    for (int i = 0; i < bankAccounts.size(); i++) {
+                        var position = validPositions.get(i);
+                        var bankAccount = created.remove(bankAccounts.get(i).getEmail());
+                        var result = CreateBankAccountResult.newBuilder().setIndex(batch.get(position).getT1());
+                        results[position] = bankAccount != null
+                                ? result.setBankAccount(BankAccountMapper.toGrpc(bankAccount)).build()
+                                : result.setError(String.format("bank account with email %s or phone %s already exists", bankAccounts.get(i).getEmail(), bankAccounts.get(i).getPhone())).build();
+                    }
+                    return Arrays.asList(results);
+                });
     }
 
-    private void spanError(Throwable ex) {
-        var span = tracer.currentSpan();
-        if (span != null) span.error(ex);
+    private Mono<TransactionResponse> applyTransaction(TransactionRequest req) {
+        return Mono.defer(() -> {
+                    var id = UUID.fromString(req.getId());
+                    var amount = BankAccountMapper.amountOf(req);
+                    return switch (req.getType()) {
+                        case DEPOSIT -> bankAccountService.depositAmount(id, amount);
+                        case WITHDRAW -> bankAccountService.withdrawAmount(id, amount);
+                        default -> Mono.error(new IllegalArgumentException(String.format("unknown transaction type: %s", req.getType())));
+                    };
+                })
+                .map(bankAccount -> TransactionResponse.newBuilder()
+                        .setRequestId(req.getRequestId())
+                        .setId(req.getId())
+                        .setBalance(bankAccount.getBalance().doubleValue())
+                        .setBalanceMoney(BankAccountMapper.toMoney(bankAccount.getBalance()))
+                        .build())
+                .onErrorResume(ex -> Mono.just(TransactionResponse.newBuilder()
+                        .setRequestId(req.getRequestId())
+                        .setId(req.getId())
+                        .setError(String.valueOf(ex.getLocalizedMessage()))
+                        .build()));
+    }
+
+    private static int laneKey(String id) {
+        try {
+            return UUID.fromString(id).hashCode();
+        } catch (IllegalArgumentException ex) {
+            return id.hashCode();
+        }
+    }
+
+    private <T> T validate(T data) {
+        var errors = validator.validate(data);
+        if (!errors.isEmpty()) throw new ConstraintViolationException(errors);
+        return data;
     }
 }
@@ -4,17 +4,18 @@ package com.alexander.bryksin.microservive.springwebfluxgrpc.delivery.http;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.*;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.mappers.BankAccountMapper;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.services.BankAccountService;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.tracing.SpanTagger;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import io.swagger.v3.oas.annotations.tags.Tags;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cloud.sleuth.Tracer;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -22,6 +23,9 @@ import reactor.core.publisher.Mono;
 import javax.validation.Valid;
 import java.math.BigDecimal;
 import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 @RestController
@@ -32,7 +36,7 @@ import java.util.UUID;
 public class BankAccountController {
 
     private final BankAccountService bankAccountService;
-    private final Tracer tracer;
+    private final SpanTagger spanTagger;
     private static final Long TIMEOUT_MILLIS = 5000L;
 
     @Operation(
@@ -43,11 +47,11 @@ public class BankAccountController {
     @PostMapping(produces = MediaType.APPLICATION_JSON_VALUE)
     public Mono<ResponseEntity<BankAccountSuccessResponseDto>> createBankAccount(@Valid @RequestBody CreateBankAccountDto createBankAccountDto) {
         return bankAccountService.createBankAccount(BankAccountMapper.fromCreateBankAccountDto(createBankAccountDto))
-                .doOnNext(bankAccount -> spanTag("bankAccount", bankAccount.toString()))
+                .doOnNext(bankAccount -> spanTagger.tag("id", bankAccount.getId()))
                 .map(bankAccount -> ResponseEntity.status(HttpStatus.CREATED).body(BankAccountMapper.toSuccessHttpResponse(bankAccount)))
                 .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
-                .doOnError(this::spanError)
-                .doOnSuccess(res -> log.info("response: status: {}, body: {}", spanTagResponseEntity(res).getStatusCodeValue(), res.getBody()));
+                .doOnError(spanTagger::error)
+                .doOnSuccess(this::spanTagStatus);
     }
 
     @Operation(
@@ -58,11 +62,28 @@ public class BankAccountController {
     @GetMapping(path = "{id}", produces = MediaType.APPLICATION_JSON_VALUE)
     public Mono<ResponseEntity<BankAccountSuccessResponseDto>> getBankAccountById(@PathVariable String id) {
         return bankAccountService.getBankAccountById(UUID.fromString(id))
-                .doOnNext(bankAccount -> spanTag("bankAccount", bankAccount.toString()))
+                .doOnNext(bankAccount -> spanTagger.tag("id", bankAccount.getId()))
                 .map(bankAccount -> ResponseEntity.ok(BankAccountMapper.toSuccessHttpResponse(bankAccount)))
                 .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
-                .doOnError(this::spanError)
-                .doOnSuccess(res -> log.info("response: status: {}, body: {}", spanTagResponseEntity(res).getStatusCodeValue(), res.getBody()));
+                .doOnError(spanTagger::error)
+                .doOnSuccess(this::spanTagStatus);
+    }
+
+    @Operation(
+            method = "getBankAccountsByIds",
+            summary = "Get bank accounts by ids",
+            operationId = "getBankAccountsByIds",
+            description = "Get user bank accounts by given ids, ids which are not found are returned in missingIds")
+    @PostMapping(path = "ids", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<BankAccountsByIdsResponseDto>> getBankAccountsByIds(@Valid @RequestBody GetBankAccountsByIdsDto getBankAccountsByIdsDto) {
+        var ids = new LinkedHashSet<>(getBankAccountsByIdsDto.ids());
+        return bankAccountService.getBankAccountsByIds(ids)
+                .collectList()
+                .doOnNext(bankAccounts -> spanTagger.tag("ids", ids.size()))
+                .map(bankAccounts -> ResponseEntity.ok(BankAccountMapper.toBankAccountsByIdsHttpResponse(ids, bankAccounts)))
+                .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
+                .doOnError(spanTagger::error)
+                .doOnSuccess(this::spanTagStatus);
     }
 
     @Operation(
@@ -74,12 +95,14 @@ public class BankAccountController {
     public Mono<ResponseEntity<BankAccountSuccessResponseDto>> depositBalance(
             @Valid @RequestBody DepositBalanceDto depositBalanceDto,
             @PathVariable UUID id) {
-        return bankAccountService.depositAmount(id, depositBalanceDto.amount())
+        return (!StringUtils.hasText(depositBalanceDto.idempotencyKey())
+                ? bankAccountService.depositAmount(id, depositBalanceDto.amount())
+                : bankAccountService.depositAmount(id, depositBalanceDto.amount(), depositBalanceDto.idempotencyKey()))
+                .doOnNext(bankAccount -> spanTagger.tag("id", id))
                 .map(bankAccount -> ResponseEntity.ok(BankAccountMapper.toSuccessHttpResponse(bankAccount)))
-                .doOnNext(bankAccount -> spanTag("bankAccount", bankAccount.toString()))
                 .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
-                .doOnError(this::spanError)
-                .doOnSuccess(res -> log.info("response: status: {}, body: {}", spanTagResponseEntity(res).getStatusCodeValue(), res.getBody()));
+                .doOnError(spanTagger::error)
+                .doOnSuccess(this::spanTagStatus);
     }
 
     @Operation(
@@ -91,12 +114,14 @@ public class BankAccountController {
     public Mono<ResponseEntity<BankAccountSuccessResponseDto>> withdrawBalance(
             @Valid @RequestBody WithdrawBalanceDto withdrawBalanceDto,
             @PathVariable UUID id) {
-        return bankAccountService.withdrawAmount(id, withdrawBalanceDto.amount())
+        return (!StringUtils.hasText(withdrawBalanceDto.idempotencyKey())
+                ? bankAccountService.withdrawAmount(id, withdrawBalanceDto.amount())
+                : bankAccountService.withdrawAmount(id, withdrawBalanceDto.amount(), withdrawBalanceDto.idempotencyKey()))
+                .doOnNext(bankAccount -> spanTagger.tag("id", id))
                 .map(bankAccount -> ResponseEntity.ok(BankAccountMapper.toSuccessHttpResponse(bankAccount)))
-                .doOnNext(bankAccount -> spanTag("bankAccount", bankAccount.toString()))
                 .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
-                .doOnError(this::spanError)
-                .doOnSuccess(res -> log.info("response: status: {}, body: {}", spanTagResponseEntity(res).getStatusCodeValue(), res.getBody()));
+                .doOnError(spanTagger::error)
+                .doOnSuccess(this::spanTagStatus);
     }
 
     @Operation(
@@ -109,13 +134,34 @@ public class BankAccountController {
             @RequestParam(name = "min", defaultValue = "0") BigDecimal min,
             @RequestParam(name = "max", defaultValue = "500000000") BigDecimal max,
             @RequestParam(name = "page", defaultValue = "0") int page,
-            @RequestParam(name = "size", defaultValue = "10") int size) {
-        return bankAccountService.findAllBankAccountsByBalance(new FindByBalanceRequestDto(min, max, PageRequest.of(page, size)))
-                .doOnNext(result -> spanTag("result", spanTagPageRequest(result)))
+            @RequestParam(name = "size", defaultValue = "10") int size,
+            @RequestParam(name = "count", required = false) CountStrategy countStrategy) {
+        return bankAccountService.findAllBankAccountsByBalance(new FindByBalanceRequestDto(min, max, PageRequest.of(page, size), countStrategy))
+                .doOnNext(result -> spanTagger.tag("totalElements", result.getTotalElements()))
                 .map(bankAccount -> ResponseEntity.ok(bankAccount.map(BankAccountMapper::toSuccessHttpResponse)))
                 .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
-                .doOnError(this::spanError)
-                .doOnSuccess(res -> log.info("response: status: {}, body: {}", spanTagResponseEntity(res).getStatusCodeValue(), res.getBody()));
+                .doOnError(spanTagger::error)
+                .doOnSuccess(this::spanTagStatus);
+    }
+
+    @Operation(
+            method = "findAllAccountsByBalanceWithCursor",
+            summary = "Find all bank account with given amount range using cursor",
+            operationId = "findAllAccountsWithCursor",
+            description = "Find all bank accounts for the given balance range with keyset pagination, pass nextCursor of the previous page to fetch the next one")
+    @GetMapping(path = "all/balance/cursor", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<CursorPage<BankAccountSuccessResponseDto>>> getByBalanceRangeWithCursor(
+            @RequestParam(name = "min", defaultValue = "0") BigDecimal min,
+            @RequestParam(name = "max", defaultValue = "500000000") BigDecimal max,
+            @RequestParam(name = "size", defaultValue = "10") int size,
+            @RequestParam(name = "cursor", required = false) String cursor) {
+        return Mono.fromCallable(() -> new FindByBalanceCursorRequestDto(min, max, BalanceCursor.fromToken(cursor), size))
+                .flatMap(bankAccountService::findBankAccountsByBalanceAfter)
+                .doOnNext(result -> spanTagger.tag("size", result.content().size()))
+                .map(result -> ResponseEntity.ok(result.map(BankAccountMapper::toSuccessHttpResponse)))
+                .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
+                .doOnError(spanTagger::error)
+                .doOnSuccess(this::spanTagStatus);
     }
 
 
@@ -133,34 +179,53 @@ public class BankAccountController {
         return bankAccountService.findBankAccountByBalanceBetween(new FindByBalanceRequestDto(min, max, PageRequest.of(page, size)))
                 .map(BankAccountMapper::toSuccessHttpResponse)
                 .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
-                .doOnError(this::spanError)
-                .doOnNext(response -> log.info("response: {}", response));
+                .doOnError(spanTagger::error);
     }
 
-
-    private void spanTag(String key, String value) {
-        var span = tracer.currentSpan();
-        if (span != null) span.tag(key, value);
+    @Operation(
+            method = "exportByBalance",
+            summary = "Export all bank accounts with given amount range",
+            operationId = "exportByBalance",
+            description = "Streams every bank account in the balance range ordered by balance as NDJSON or server-sent events, without a page limit or a request timeout")
+    @GetMapping(path = "export/balance", produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE})
+    public Flux<BankAccountSuccessResponseDto> exportByBalance(
+            @RequestParam(name = "min", defaultValue = "0") BigDecimal min,
+            @RequestParam(name = "max", defaultValue = "500000000") BigDecimal max) {
+        return bankAccountService.exportBankAccountsByBalance(min, max)
+                .map(BankAccountMapper::toSuccessHttpResponse)
+                .doOnError(spanTagger::error);
     }
 
-    private <T> ResponseEntity<T> spanTagResponseEntity(ResponseEntity<T> responseEntity) {
-        var span = tracer.currentSpan();
-        if (span != null) {
-            span.tag("status", responseEntity.getStatusCode().toString());
-            if (responseEntity.getBody() != null) span.tag("body", responseEntity.getBody().toString());
-        }
-        return responseEntity;
+    @Operation(
+            method = "balanceUpdates",
+            summary = "Subscribe to balance updates",
+            operationId = "balanceUpdates",
+            description = "Pushes the balance of the given bank accounts as server-sent events after every committed change, instead of polling them")
+    @GetMapping(path = "balance-updates", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<BalanceUpdateDto> balanceUpdates(@RequestParam(name = "ids") Set<UUID> ids) {
+        return bankAccountService.subscribeBalanceChanges(ids)
+                .map(BankAccountMapper::toBalanceUpdateHttpResponse)
+                .doOnError(spanTagger::error);
     }
 
-    private void spanError(Throwable ex) {
-        var span = tracer.currentSpan();
-        if (span != null) span.error(ex);
+    @Operation(
+            method = "balanceStats",
+            summary = "Balance statistics of the given amount range",
+            operationId = "balanceStats",
+            description = "Count, balance total and quantiles of the bank accounts in the balance range, read from the balance histogram instead of scanning the accounts")
+    @GetMapping(path = "all/balance/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<BalanceStatsDto>> getBalanceStats(
+            @RequestParam(name = "min", required = false) BigDecimal min,
+            @RequestParam(name = "max", required = false) BigDecimal max,
+            @RequestParam(name = "quantiles", required = false) List<Double> quantiles) {
+        return bankAccountService.getBalanceStats(min, max, quantiles == null ? List.of() : quantiles)
+                .map(stats -> ResponseEntity.ok(BankAccountMapper.toBalanceStatsHttpResponse(stats)))
+                .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
+                .doOnError(spanTagger::error)
+                .doOnSuccess(this::spanTagStatus);
     }
 
-    private String spanTagPageRequest(Page<?> response) {
-        return String.format("totalElements: %s, totalPages: %s, pagination: %s",
-                response.getTotalElements(),
-                response.getTotalPages(),
-                response.getPageable());
+    private void spanTagStatus(ResponseEntity<?> responseEntity) {
+        if (responseEntity != null) spanTagger.tag("status", responseEntity.getStatusCodeValue());
     }
 }
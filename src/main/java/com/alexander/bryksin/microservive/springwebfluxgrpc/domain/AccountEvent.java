@@ -0,0 +1,13 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.domain;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Change of one bank account read from the outbox, amount is the signed balance change and balance the value after it.
+ * Offsets are assigned when the event is published and grow in commit order, a consumer resumes after the last one it received.
+ */
+public record AccountEvent(long offset, UUID bankAccountId, AccountEventType type, BigDecimal amount, BigDecimal balance,
+                           Currency currency, LocalDateTime createdAt) {
+}
@@ -0,0 +1,13 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.domain;
+
+import java.math.BigDecimal;
+
+public enum AccountEventType {
+    CREATED,
+    DEPOSITED,
+    WITHDRAWN;
+
+    public static AccountEventType ofAmount(BigDecimal amount) {
+        return amount.signum() < 0 ? WITHDRAWN : DEPOSITED;
+    }
+}
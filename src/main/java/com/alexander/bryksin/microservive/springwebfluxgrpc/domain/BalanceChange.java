@@ -0,0 +1,21 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.domain;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.UUID;
+
+/**
+ * Balance of one account right after a committed insert or update, parsed from a bank_account_balance notification.
+ */
+public record BalanceChange(UUID id, BigDecimal balance, Currency currency, LocalDateTime updatedAt) {
+
+    public static BalanceChange parse(String payload) {
+        var fields = payload.split(",", 4);
+        if (fields.length != 4) throw new IllegalArgumentException(String.format("unexpected balance notification: %s", payload));
+        var updatedAt = Instant.EPOCH.plus(Long.parseLong(fields[3]), ChronoUnit.MICROS);
+        return new BalanceChange(UUID.fromString(fields[0]), new BigDecimal(fields[1]), Currency.valueOf(fields[2]), LocalDateTime.ofInstant(updatedAt, ZoneId.systemDefault()));
+    }
+}
@@ -0,0 +1,130 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.domain;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In memory copy of microservices.balance_histogram, bucket bounds in cents. Bucket i holds the accounts with
+ * lowerBounds[i] <= balance < lowerBounds[i + 1]. Range counts, sums and quantiles take one pass over the buckets,
+ * accounts of a bucket the range only partly covers are assumed to be spread evenly over the bucket.
+ * Bucket sums stay BigDecimal, a DECIMAL(32, 2) balance_sum does not fit a long in cents.
+ */
+public final class BalanceHistogram {
+
+    private static final int SCALE = 2;
+    // one cent above the largest DECIMAL(16, 2) balance, the exclusive upper bound of the last bucket
+    private static final long UPPER_BOUND = 10_000_000_000_000_000L;
+
+    private final long[] lowerBounds;
+    private final long[] counts;
+    private final BigDecimal[] sums;
+    private final Instant asOf;
+
+    public BalanceHistogram(long[] lowerBounds, long[] counts, BigDecimal[] sums, Instant asOf) {
+        if (lowerBounds.length != counts.length || counts.length != sums.length)
+            throw new IllegalArgumentException(String.format("bucket arrays differ in length: %d, %d, %d", lowerBounds.length, counts.length, sums.length));
+        this.lowerBounds = lowerBounds;
+        this.counts = counts;
+        this.sums = sums;
+        this.asOf = asOf;
+    }
+
+    public static long toCents(BigDecimal balance) {
+        return balance.setScale(SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+    }
+
+    public int buckets() {
+        return counts.length;
+    }
+
+    public Instant asOf() {
+        return asOf;
+    }
+
+    /**
+     * @param min inclusive, null for no lower bound
+     * @param max inclusive, null for no upper bound
+     */
+    public long count(BigDecimal min, BigDecimal max) {
+        return Math.round(new Selection(min, max).count);
+    }
+
+    /**
+     * @param quantiles between 0 and 1
+     */
+    public BalanceStats stats(BigDecimal min, BigDecimal max, double[] quantiles) {
+        var selection = new Selection(min, max);
+        var result = new ArrayList<BalanceStats.Quantile>(quantiles.length);
+        for (var quantile : quantiles) {
+            result.add(new BalanceStats.Quantile(quantile, BigDecimal.valueOf(selection.quantile(quantile), SCALE)));
+        }
+        var partialSum = new BigDecimal(selection.partialSum).setScale(0, RoundingMode.HALF_EVEN).movePointLeft(SCALE);
+        var sum = selection.coveredSum.add(partialSum).setScale(SCALE, RoundingMode.UNNECESSARY);
+        return new BalanceStats(Math.round(selection.count), sum, List.copyOf(result), selection.exact, asOf);
+    }
+
+    private long upperBound(int bucket) {
+        return bucket + 1 < lowerBounds.length ? lowerBounds[bucket + 1] : UPPER_BOUND;
+    }
+
+    /**
+     * The part of every bucket inside [min, max], from and to are the covered balances, weight the accounts there.
+     */
+    private class Selection {
+
+        private final long[] from = new long[counts.length];
+        private final long[] to = new long[counts.length];
+        private final double[] weight = new double[counts.length];
+        private double count;
+        private BigDecimal coveredSum = BigDecimal.ZERO;
+        private double partialSum;
+        private boolean exact = true;
+
+        Selection(BigDecimal min, BigDecimal max) {
+            var minCents = min == null ? Long.MIN_VALUE : min.setScale(SCALE, RoundingMode.CEILING).unscaledValue().longValueExact();
+            var maxCentsExclusive = max == null ? Long.MAX_VALUE : max.setScale(SCALE, RoundingMode.FLOOR).unscaledValue().longValueExact() + 1;
+
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) continue;
+                var lower = lowerBounds[i];
+                var upper = upperBound(i);
+                from[i] = Math.max(lower, minCents);
+                to[i] = Math.min(upper, maxCentsExclusive);
+                if (to[i] <= from[i]) continue;
+
+                if (from[i] == lower && to[i] == upper) {
+                    weight[i] = counts[i];
+                    coveredSum = coveredSum.add(sums[i]);
+                } else {
+                    weight[i] = counts[i] * ((double) (to[i] - from[i]) / (upper - lower));
+                    partialSum += weight[i] * ((from[i] + to[i] - 1) / 2.0);
+                    exact = false;
+                }
+                count += weight[i];
+            }
+        }
+
+        /**
+         * @return balance in cents
+         */
+        long quantile(double quantile) {
+            if (quantile < 0 || quantile > 1) throw new IllegalArgumentException(String.format("quantile must be between 0 and 1: %s", quantile));
+
+            var rank = quantile * count;
+            var below = 0.0;
+            var last = -1;
+            for (int i = 0; i < weight.length; i++) {
+                if (weight[i] == 0) continue;
+                last = i;
+                if (below + weight[i] >= rank) {
+                    return from[i] + Math.round((to[i] - 1 - from[i]) * ((rank - below) / weight[i]));
+                }
+                below += weight[i];
+            }
+            return last < 0 ? 0 : to[last] - 1;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.domain;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Accounts, balance total and balance quantiles of a balance range, computed from {@link BalanceHistogram}.
+ *
+ * @param exact false when the range cuts through non empty buckets, count and sum are then interpolated
+ * @param asOf  when the histogram was read
+ */
+public record BalanceStats(long count, BigDecimal sum, List<Quantile> quantiles, boolean exact, Instant asOf) {
+
+    public BigDecimal mean() {
+        return count == 0 ? BigDecimal.ZERO.setScale(sum.scale()) : sum.divide(BigDecimal.valueOf(count), sum.scale(), RoundingMode.HALF_EVEN);
+    }
+
+    public record Quantile(double quantile, BigDecimal balance) {
+    }
+}
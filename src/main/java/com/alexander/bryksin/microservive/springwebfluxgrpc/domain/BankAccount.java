@@ -17,7 +17,7 @@ import java.time.LocalDateTime;
 import java.util.UUID;
 
 @AllArgsConstructor
-@Builder
+@Builder(toBuilder = true)
 @Data
 @Table(schema = "microservices", name = "bank_accounts")
 public class BankAccount {
@@ -0,0 +1,20 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.domain;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Outcome of a balance update made with an idempotency key, amount is positive for deposits and negative for withdrawals,
+ * balance and updatedAt are the account values right after the update.
+ */
+public record IdempotencyRecord(String key, UUID bankAccountId, BigDecimal amount, BigDecimal balance, LocalDateTime updatedAt) {
+
+    public boolean matches(UUID bankAccountId, BigDecimal amount) {
+        return this.bankAccountId.equals(bankAccountId) && this.amount.compareTo(amount) == 0;
+    }
+
+    public BankAccount applyTo(BankAccount bankAccount) {
+        return bankAccount.toBuilder().balance(balance).updatedAt(updatedAt).build();
+    }
+}
@@ -0,0 +1,36 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.dto;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Keyset position in the (balance, bank_account_id) ordering, exchanged with clients as an opaque token.
+ */
+public record BalanceCursor(BigDecimal balance, UUID id) {
+
+    private static final char SEPARATOR = ':';
+
+    public static BalanceCursor of(BankAccount bankAccount) {
+        return new BalanceCursor(bankAccount.getBalance(), bankAccount.getId());
+    }
+
+    public static BalanceCursor fromToken(String token) {
+        if (token == null || token.isBlank()) return null;
+        try {
+            var decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            var separatorIndex = decoded.indexOf(SEPARATOR);
+            return new BalanceCursor(new BigDecimal(decoded.substring(0, separatorIndex)), UUID.fromString(decoded.substring(separatorIndex + 1)));
+        } catch (RuntimeException ex) {
+            throw new IllegalArgumentException(String.format("invalid cursor: %s", token), ex);
+        }
+    }
+
+    public String toToken() {
+        var value = balance.toPlainString() + SEPARATOR + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,14 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.dto;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Map;
+
+public record BalanceStatsDto(
+        long count,
+        BigDecimal sum,
+        BigDecimal mean,
+        Map<String, BigDecimal> quantiles,
+        boolean exact,
+        Instant asOf) {
+}
@@ -0,0 +1,9 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.dto;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.Currency;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+public record BalanceUpdateDto(String id, BigDecimal balance, Currency currency, LocalDateTime updatedAt) {
+}
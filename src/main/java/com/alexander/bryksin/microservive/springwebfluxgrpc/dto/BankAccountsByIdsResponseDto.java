@@ -0,0 +1,8 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.dto;
+
+import java.util.List;
+
+public record BankAccountsByIdsResponseDto(
+        List<BankAccountSuccessResponseDto> bankAccounts,
+        List<String> missingIds) {
+}
@@ -0,0 +1,20 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.dto;
+
+public enum CountStrategy {
+    /**
+     * runs count(*) for the balance range on every request
+     */
+    EXACT,
+    /**
+     * serves the count from an in-process cache kept up to date by the write paths
+     */
+    CACHED,
+    /**
+     * uses the planner row estimate for the balance range
+     */
+    ESTIMATED,
+    /**
+     * interpolates the count from the in-process balance histogram, exact when min and max fall on bucket bounds
+     */
+    HISTOGRAM
+}
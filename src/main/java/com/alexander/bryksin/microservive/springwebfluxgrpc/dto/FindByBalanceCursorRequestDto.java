@@ -0,0 +1,14 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.dto;
+
+import java.math.BigDecimal;
+
+public record FindByBalanceCursorRequestDto(
+        BigDecimal min,
+        BigDecimal max,
+        BalanceCursor cursor,
+        int size) {
+
+    public FindByBalanceCursorRequestDto {
+        if (size < 1) throw new IllegalArgumentException("page size must not be less than one");
+    }
+}
@@ -7,5 +7,10 @@ import java.math.BigDecimal;
 public record FindByBalanceRequestDto(
         BigDecimal min,
         BigDecimal max,
-        Pageable pageable) {
+        Pageable pageable,
+        CountStrategy countStrategy) {
+
+    public FindByBalanceRequestDto(BigDecimal min, BigDecimal max, Pageable pageable) {
+        this(min, max, pageable, null);
+    }
 }
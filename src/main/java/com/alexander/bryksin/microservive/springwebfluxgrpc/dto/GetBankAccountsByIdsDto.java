@@ -0,0 +1,8 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.dto;
+
+import javax.validation.constraints.NotEmpty;
+import java.util.List;
+import java.util.UUID;
+
+public record GetBankAccountsByIdsDto(@NotEmpty List<UUID> ids) {
+}
@@ -1,7 +1,8 @@
 package com.alexander.bryksin.microservive.springwebfluxgrpc.dto;
 
 import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Size;
 import java.math.BigDecimal;
 
-public record WithdrawBalanceDto(@DecimalMin(value = "0.0") BigDecimal amount) {
+public record WithdrawBalanceDto(@DecimalMin(value = "0.0") BigDecimal amount, @Size(max = 128) String idempotencyKey) {
 }
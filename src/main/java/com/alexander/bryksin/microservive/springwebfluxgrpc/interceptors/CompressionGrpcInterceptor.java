@@ -0,0 +1,28 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.interceptors;
+
+import io.grpc.*;
+
+import java.util.Set;
+
+/**
+ * Compresses the responses of the configured methods. The compressor is only used when the client lists it in
+ * grpc-accept-encoding, other clients get uncompressed messages, grpc-java falls back to identity on its own.
+ */
+public class CompressionGrpcInterceptor implements ServerInterceptor {
+
+    private final String compression;
+    private final Set<String> methods;
+
+    public CompressionGrpcInterceptor(String compression, Set<String> methods) {
+        if (CompressorRegistry.getDefaultInstance().lookupCompressor(compression) == null)
+            throw new IllegalArgumentException(String.format("unknown grpc compression: %s", compression));
+        this.compression = compression;
+        this.methods = Set.copyOf(methods);
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        if (methods.contains(call.getMethodDescriptor().getBareMethodName())) call.setCompression(compression);
+        return next.startCall(call, headers);
+    }
+}
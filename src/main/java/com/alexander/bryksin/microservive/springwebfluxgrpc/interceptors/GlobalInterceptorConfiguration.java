@@ -1,14 +1,39 @@
 package com.alexander.bryksin.microservive.springwebfluxgrpc.interceptors;
 
 
+import com.alexander.bryksin.microservive.springwebfluxgrpc.logging.RequestLogger;
+import io.micrometer.core.instrument.MeterRegistry;
 import net.devh.boot.grpc.server.interceptor.GrpcGlobalServerInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
+
+import java.time.Duration;
+import java.util.Set;
 
 @Configuration(proxyBeanMethods = false)
 public class GlobalInterceptorConfiguration {
 
+    /**
+     * Outermost, so the recorded latency includes the logging interceptor and the service.
+     */
+    @GrpcGlobalServerInterceptor
+    @Order(10)
+    public MetricsGrpcInterceptor metricsServerInterceptor(MeterRegistry meterRegistry,
+                                                           @Value(value = "${grpc.metrics.latency-slo}") Duration[] latencySlo) {
+        return new MetricsGrpcInterceptor(meterRegistry, latencySlo);
+    }
+
+    @GrpcGlobalServerInterceptor
+    @Order(20)
+    public LogGrpcInterceptor logServerInterceptor(RequestLogger requestLogger) {
+        return new LogGrpcInterceptor(requestLogger);
+    }
+
     @GrpcGlobalServerInterceptor
-    public LogGrpcInterceptor logServerInterceptor() {
-        return new LogGrpcInterceptor();
+    @Order(30)
+    public CompressionGrpcInterceptor compressionServerInterceptor(@Value(value = "${grpc.compression.algorithm:gzip}") String compression,
+                                                                   @Value(value = "${grpc.compression.methods:}") Set<String> methods) {
+        return new CompressionGrpcInterceptor(compression, methods);
     }
 }
@@ -1,18 +1,61 @@
 package com.alexander.bryksin.microservive.springwebfluxgrpc.interceptors;
 
-import io.grpc.Metadata;
-import io.grpc.ServerCall;
-import io.grpc.ServerCallHandler;
-import io.grpc.ServerInterceptor;
-import lombok.extern.slf4j.Slf4j;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.logging.RequestLogger;
+import com.google.protobuf.Message;
+import io.grpc.*;
+import lombok.RequiredArgsConstructor;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
-@Slf4j
+
+@RequiredArgsConstructor
 public class LogGrpcInterceptor implements ServerInterceptor {
 
+    private static final String ID_FIELD = "id";
+
+    private final RequestLogger requestLogger;
+    private final Map<String, String> loggerNames = new ConcurrentHashMap<>();
+
     @Override
     public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
-        log.info("service: {}, method: {}, headers: {}", call.getMethodDescriptor().getServiceName(), call.getMethodDescriptor().getBareMethodName(), headers.toString());
-        return next.startCall(call, headers);
+        var loggerName = loggerNames.computeIfAbsent(call.getMethodDescriptor().getFullMethodName(), name -> RequestLogger.GRPC_LOGGER_PREFIX + MethodDescriptor.extractBareMethodName(name));
+        var loggingCall = new LoggingServerCall<>(call, loggerName);
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(next.startCall(loggingCall, headers)) {
+            @Override
+            public void onMessage(ReqT message) {
+                if (loggingCall.firstRequest == null) loggingCall.firstRequest = message;
+                super.onMessage(message);
+            }
+        };
+    }
+
+    /**
+     * Keeps a reference to the first request message, its id is only read when the call is selected for logging.
+     */
+    private class LoggingServerCall<ReqT, RespT> extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> implements Supplier<String> {
+
+        private final String loggerName;
+        private final long startedAt = System.nanoTime();
+        private volatile Object firstRequest;
+
+        LoggingServerCall(ServerCall<ReqT, RespT> delegate, String loggerName) {
+            super(delegate);
+            this.loggerName = loggerName;
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            requestLogger.log(loggerName, status.getCode(), !status.isOk(), startedAt, this);
+            super.close(status, trailers);
+        }
+
+        @Override
+        public String get() {
+            if (!(firstRequest instanceof Message message)) return "";
+            var field = message.getDescriptorForType().findFieldByName(ID_FIELD);
+            return field != null ? String.valueOf(message.getField(field)) : "";
+        }
     }
 }
@@ -0,0 +1,152 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.interceptors;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.*;
+import io.micrometer.core.instrument.*;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per method gRPC server metrics:
+ * grpc.server.call.duration timer with SLO buckets, tagged with the status code, so its count is the status counter,
+ * grpc.server.request.size / grpc.server.response.size serialized message sizes,
+ * grpc.server.stream.messages messages received and sent per streaming call,
+ * grpc.server.calls.in.flight gauge of calls that are not closed yet.
+ * Meters are created once per method (and status) and looked up without allocating on the call path.
+ */
+public class MetricsGrpcInterceptor implements ServerInterceptor {
+
+    private static final double[] SIZE_BUCKETS_BYTES = {64, 256, 1024, 4096, 16384, 65536, 262144, 1048576};
+
+    private final MeterRegistry meterRegistry;
+    private final Duration[] latencySlo;
+    private final Map<String, MethodMetrics> methodMetrics = new ConcurrentHashMap<>();
+
+    public MetricsGrpcInterceptor(MeterRegistry meterRegistry, Duration[] latencySlo) {
+        this.meterRegistry = meterRegistry;
+        this.latencySlo = latencySlo;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        var descriptor = call.getMethodDescriptor();
+        var metrics = methodMetrics.computeIfAbsent(descriptor.getFullMethodName(), name -> new MethodMetrics(descriptor));
+        var metricsCall = new MetricsServerCall<>(call, metrics);
+        metrics.inFlight.incrementAndGet();
+
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(next.startCall(metricsCall, headers)) {
+            @Override
+            public void onMessage(ReqT message) {
+                metricsCall.received++;
+                if (message instanceof MessageLite messageLite) metrics.requestSize.record(messageLite.getSerializedSize());
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onCancel() {
+                metricsCall.finish(Status.Code.CANCELLED);
+                super.onCancel();
+            }
+        };
+    }
+
+    private class MetricsServerCall<ReqT, RespT> extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+
+        private final MethodMetrics metrics;
+        private final long startedAt = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile int received;
+        private volatile int sent;
+
+        MetricsServerCall(ServerCall<ReqT, RespT> delegate, MethodMetrics metrics) {
+            super(delegate);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void sendMessage(RespT message) {
+            sent++;
+            if (message instanceof MessageLite messageLite) metrics.responseSize.record(messageLite.getSerializedSize());
+            super.sendMessage(message);
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            finish(status.getCode());
+            super.close(status, trailers);
+        }
+
+        /**
+         * Called on close and on cancellation, whichever comes first records the call.
+         */
+        void finish(Status.Code code) {
+            if (!finished.compareAndSet(false, true)) return;
+            metrics.inFlight.decrementAndGet();
+            metrics.duration(code).record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+            if (metrics.messagesReceived != null) {
+                metrics.messagesReceived.record(received);
+                metrics.messagesSent.record(sent);
+            }
+        }
+    }
+
+    private class MethodMetrics {
+
+        private final Tags tags;
+        private final AtomicInteger inFlight;
+        private final DistributionSummary requestSize;
+        private final DistributionSummary responseSize;
+        private final DistributionSummary messagesReceived;
+        private final DistributionSummary messagesSent;
+        private final Map<Status.Code, Timer> durations = new EnumMap<>(Status.Code.class);
+
+        MethodMetrics(MethodDescriptor<?, ?> descriptor) {
+            this.tags = Tags.of(
+                    "service", descriptor.getServiceName(),
+                    "method", descriptor.getBareMethodName(),
+                    "method_type", descriptor.getType().name());
+
+            this.inFlight = meterRegistry.gauge("grpc.server.calls.in.flight", tags, new AtomicInteger());
+            this.requestSize = sizeSummary("grpc.server.request.size", "Serialized size of received messages");
+            this.responseSize = sizeSummary("grpc.server.response.size", "Serialized size of sent messages");
+
+            var streaming = descriptor.getType() != MethodDescriptor.MethodType.UNARY;
+            this.messagesReceived = streaming ? messagesSummary("received") : null;
+            this.messagesSent = streaming ? messagesSummary("sent") : null;
+        }
+
+        Timer duration(Status.Code code) {
+            synchronized (durations) {
+                return durations.computeIfAbsent(code, statusCode -> Timer.builder("grpc.server.call.duration")
+                        .description("Time from call start until the call is closed or cancelled")
+                        .tags(tags)
+                        .tag("status", statusCode.name())
+                        .serviceLevelObjectives(latencySlo)
+                        .register(meterRegistry));
+            }
+        }
+
+        private DistributionSummary sizeSummary(String name, String description) {
+            return DistributionSummary.builder(name)
+                    .description(description)
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .serviceLevelObjectives(SIZE_BUCKETS_BYTES)
+                    .register(meterRegistry);
+        }
+
+        private DistributionSummary messagesSummary(String direction) {
+            return DistributionSummary.builder("grpc.server.stream.messages")
+                    .description("Messages per streaming call")
+                    .tags(tags)
+                    .tag("direction", direction)
+                    .register(meterRegistry);
+        }
+    }
+}
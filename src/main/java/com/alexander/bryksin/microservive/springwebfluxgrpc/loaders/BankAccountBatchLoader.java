@@ -0,0 +1,85 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.loaders;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.repositories.BankAccountRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Coalesces concurrent single-id lookups: ids requested within the batch window (or until max-batch-size ids
+ * are collected) are loaded with one ANY(:ids) query and the rows are fanned back out to the waiting callers.
+ * Batches always read the primary, not the replica: the rows fill the account cache right after a write has
+ * invalidated it, and a lagging replica would put the balance from before the write back for the cache TTL.
+ */
+@Slf4j
+@Component
+public class BankAccountBatchLoader implements DisposableBean {
+
+    private final BankAccountRepository bankAccountRepository;
+    private final boolean enabled;
+    private final Sinks.Many<PendingLoad> pendingLoads = Sinks.many().unicast().onBackpressureBuffer();
+    private final Disposable subscription;
+
+    public BankAccountBatchLoader(BankAccountRepository bankAccountRepository,
+                                  @Value(value = "${bank-account.loader.enabled:true}") boolean enabled,
+                                  @Value(value = "${bank-account.loader.window:2ms}") Duration window,
+                                  @Value(value = "${bank-account.loader.max-batch-size:100}") int maxBatchSize,
+                                  @Value(value = "${bank-account.loader.max-concurrency:8}") int maxConcurrency) {
+        this.bankAccountRepository = bankAccountRepository;
+        this.enabled = enabled;
+        this.subscription = pendingLoads.asFlux()
+                .bufferTimeout(maxBatchSize, window)
+                // bufferTimeout fails with an overflow when the window closes while max-concurrency batches are in flight
+                .onBackpressureBuffer()
+                .flatMap(this::loadBatch, maxConcurrency)
+                .subscribe();
+    }
+
+    public Mono<BankAccount> load(UUID id) {
+        if (!enabled) return bankAccountRepository.findById(id);
+        return Mono.defer(() -> {
+            var result = Sinks.<BankAccount>one();
+            emit(new PendingLoad(id, result));
+            return result.asMono();
+        });
+    }
+
+    private synchronized void emit(PendingLoad pendingLoad) {
+        pendingLoads.emitNext(pendingLoad, Sinks.EmitFailureHandler.FAIL_FAST);
+    }
+
+    private Mono<Void> loadBatch(List<PendingLoad> batch) {
+        var ids = batch.stream().map(PendingLoad::id).collect(Collectors.toSet());
+        return bankAccountRepository.findAllByIds(ids)
+                .collectMap(BankAccount::getId)
+                .doOnNext(bankAccounts -> batch.forEach(pendingLoad -> {
+                    var bankAccount = bankAccounts.get(pendingLoad.id());
+                    if (bankAccount != null) pendingLoad.result().tryEmitValue(bankAccount);
+                    else pendingLoad.result().tryEmitEmpty();
+                }))
+                .doOnError(ex -> {
+                    log.error("(BankAccountBatchLoader) batch of {} ids failed: {}", ids.size(), ex.getLocalizedMessage());
+                    batch.forEach(pendingLoad -> pendingLoad.result().tryEmitError(ex));
+                })
+                .onErrorResume(ex -> Mono.empty())
+                .then();
+    }
+
+    @Override
+    public void destroy() {
+        subscription.dispose();
+    }
+
+    private record PendingLoad(UUID id, Sinks.One<BankAccount> result) {
+    }
+}
@@ -0,0 +1,39 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.logging;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * GET /actuator/requestlog shows the request log settings, POST changes them at runtime, e.g.
+ * {"enabled": true, "sampleRate": 0.1, "slowThreshold": "PT0.2S"}.
+ * Per method levels are changed with the loggers endpoint, e.g. POST /actuator/loggers/requests.grpc.getBankAccountById.
+ */
+@Component
+@Endpoint(id = "requestlog")
+@RequiredArgsConstructor
+public class RequestLogEndpoint {
+
+    private final RequestLogger requestLogger;
+
+    @ReadOperation
+    public RequestLogSettings settings() {
+        return new RequestLogSettings(requestLogger.isEnabled(), requestLogger.getSampleRate(), requestLogger.getSlowThreshold());
+    }
+
+    @WriteOperation
+    public RequestLogSettings update(@Nullable Boolean enabled, @Nullable Double sampleRate, @Nullable Duration slowThreshold) {
+        if (sampleRate != null) requestLogger.setSampleRate(sampleRate);
+        if (slowThreshold != null) requestLogger.setSlowThreshold(slowThreshold);
+        if (enabled != null) requestLogger.setEnabled(enabled);
+        return settings();
+    }
+
+    public record RequestLogSettings(boolean enabled, double sampleRate, Duration slowThreshold) {
+    }
+}
@@ -0,0 +1,63 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.logging;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Request summaries for the REST controllers, see {@link RequestLogger}. Requests that are not handled by a
+ * rest controller method (actuator, swagger resources) are not logged.
+ */
+@Component
+@RequiredArgsConstructor
+public class RequestLogWebFilter implements WebFilter {
+
+    private static final String ID_VARIABLE = "id";
+
+    private final RequestLogger requestLogger;
+    private final Map<Method, String> loggerNames = new ConcurrentHashMap<>();
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        var startedAt = System.nanoTime();
+        return chain.filter(exchange).doFinally(signalType -> {
+            if (!(exchange.getAttribute(HandlerMapping.BEST_MATCHING_HANDLER_ATTRIBUTE) instanceof HandlerMethod handlerMethod)) return;
+
+            var loggerName = loggerNames.computeIfAbsent(handlerMethod.getMethod(), RequestLogWebFilter::loggerName);
+            if (loggerName.isEmpty()) return;
+
+            var status = Objects.requireNonNullElse(exchange.getResponse().getStatusCode(), HttpStatus.OK);
+            requestLogger.log(loggerName,
+                    status,
+                    status.is5xxServerError(),
+                    startedAt,
+                    () -> pathId(exchange));
+        });
+    }
+
+    /**
+     * Empty for handlers that are not rest controllers, e.g. actuator endpoints.
+     */
+    private static String loggerName(Method method) {
+        if (!AnnotatedElementUtils.hasAnnotation(method.getDeclaringClass(), RestController.class)) return "";
+        return RequestLogger.HTTP_LOGGER_PREFIX + method.getName();
+    }
+
+    private static String pathId(ServerWebExchange exchange) {
+        Map<String, String> variables = exchange.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        return variables != null ? variables.getOrDefault(ID_VARIABLE, "") : "";
+    }
+}
@@ -0,0 +1,82 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.logging;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * One summary line per gRPC call or HTTP request: method, status, latency and the account id when there is one.
+ * Every method logs to its own logger, requests.grpc.&lt;method&gt; or requests.http.&lt;method&gt;, so levels can be
+ * set per method with logging.level.* or at runtime through the actuator loggers endpoint.
+ * Successful requests are logged at INFO for a sampled fraction only, failed and slow ones at WARN always.
+ * The id is rendered only once a request is selected for logging.
+ */
+@Component
+public class RequestLogger {
+
+    public static final String GRPC_LOGGER_PREFIX = "requests.grpc.";
+    public static final String HTTP_LOGGER_PREFIX = "requests.http.";
+
+    private final Map<String, Logger> loggers = new ConcurrentHashMap<>();
+
+    private volatile boolean enabled;
+    private volatile double sampleRate;
+    private volatile long slowThresholdNanos;
+
+    public RequestLogger(@Value(value = "${request-log.enabled:true}") boolean enabled,
+                         @Value(value = "${request-log.sample-rate:0.01}") double sampleRate,
+                         @Value(value = "${request-log.slow-threshold:500ms}") Duration slowThreshold) {
+        this.enabled = enabled;
+        setSampleRate(sampleRate);
+        setSlowThreshold(slowThreshold);
+    }
+
+    public void log(String loggerName, Object status, boolean failed, long startedAtNanos, Supplier<String> id) {
+        if (!enabled) return;
+
+        var latencyNanos = System.nanoTime() - startedAtNanos;
+        var logger = loggers.computeIfAbsent(loggerName, LoggerFactory::getLogger);
+
+        if (failed || latencyNanos >= slowThresholdNanos) {
+            if (logger.isWarnEnabled())
+                logger.warn("status: {}, latency: {}ms, id: {}", status, TimeUnit.NANOSECONDS.toMillis(latencyNanos), id.get());
+            return;
+        }
+
+        if (logger.isInfoEnabled() && ThreadLocalRandom.current().nextDouble() < sampleRate)
+            logger.info("status: {}, latency: {}ms, id: {}", status, TimeUnit.NANOSECONDS.toMillis(latencyNanos), id.get());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) throw new IllegalArgumentException(String.format("sample rate must be between 0 and 1: %s", sampleRate));
+        this.sampleRate = sampleRate;
+    }
+
+    public Duration getSlowThreshold() {
+        return Duration.ofNanos(slowThresholdNanos);
+    }
+
+    public void setSlowThreshold(Duration slowThreshold) {
+        this.slowThresholdNanos = slowThreshold.toNanos();
+    }
+}
@@ -0,0 +1,81 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.mappers;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Writes ids and timestamps straight into the bytes of proto string fields, the same text as UUID.toString and
+ * LocalDateTime.toString without building the intermediate String and encoding it to UTF-8 again on serialization.
+ */
+final class AsciiFields {
+    private AsciiFields() {
+    }
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+    private static final int[] FRACTION_DIVISORS = {0, 0, 0, 1_000_000, 0, 0, 1_000, 0, 0, 1};
+    private static final int UUID_LENGTH = 36;
+    private static final int DATE_TIME_MINUTES_LENGTH = 16;
+
+    static ByteString uuid(UUID id) {
+        var bytes = new byte[UUID_LENGTH];
+        var msb = id.getMostSignificantBits();
+        var lsb = id.getLeastSignificantBits();
+        hex(bytes, 0, msb >>> 32, 8);
+        bytes[8] = '-';
+        hex(bytes, 9, msb >>> 16, 4);
+        bytes[13] = '-';
+        hex(bytes, 14, msb, 4);
+        bytes[18] = '-';
+        hex(bytes, 19, lsb >>> 48, 4);
+        bytes[23] = '-';
+        hex(bytes, 24, lsb, 12);
+        return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    static ByteString dateTime(LocalDateTime dateTime) {
+        var year = dateTime.getYear();
+        if (year < 0 || year > 9999) return ByteString.copyFromUtf8(dateTime.toString());
+
+        var second = dateTime.getSecond();
+        var nano = dateTime.getNano();
+        var fractionDigits = nano == 0 ? 0 : nano % 1_000_000 == 0 ? 3 : nano % 1_000 == 0 ? 6 : 9;
+        var length = DATE_TIME_MINUTES_LENGTH + (second > 0 || nano > 0 ? 3 : 0) + (fractionDigits > 0 ? fractionDigits + 1 : 0);
+
+        var bytes = new byte[length];
+        decimal(bytes, 0, year, 4);
+        bytes[4] = '-';
+        decimal(bytes, 5, dateTime.getMonthValue(), 2);
+        bytes[7] = '-';
+        decimal(bytes, 8, dateTime.getDayOfMonth(), 2);
+        bytes[10] = 'T';
+        decimal(bytes, 11, dateTime.getHour(), 2);
+        bytes[13] = ':';
+        decimal(bytes, 14, dateTime.getMinute(), 2);
+        if (length > DATE_TIME_MINUTES_LENGTH) {
+            bytes[16] = ':';
+            decimal(bytes, 17, second, 2);
+        }
+        if (fractionDigits > 0) {
+            bytes[19] = '.';
+            decimal(bytes, 20, nano / FRACTION_DIVISORS[fractionDigits], fractionDigits);
+        }
+        return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    private static void hex(byte[] bytes, int offset, long value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            bytes[i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    private static void decimal(byte[] bytes, int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
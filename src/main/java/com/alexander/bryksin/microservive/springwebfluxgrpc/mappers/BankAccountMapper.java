@@ -1,18 +1,28 @@
 package com.alexander.bryksin.microservive.springwebfluxgrpc.mappers;
 
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.AccountEvent;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BalanceChange;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BalanceStats;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.Currency;
-import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.BankAccountSuccessResponseDto;
-import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.CreateBankAccountDto;
-import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.FindByBalanceRequestDto;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.*;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.exceptions.InvalidAmountException;
 import com.grpc.bankService.*;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public final class BankAccountMapper {
+    private static final int SNAPSHOT_BALANCE_SCALE = 2;
+    private static final int MAX_MONEY_SCALE = 2;
+    private static final List<String> CURRENCY_DICTIONARY = Arrays.stream(Currency.values()).map(Currency::name).toList();
+
     private BankAccountMapper() {
     }
 
@@ -22,7 +32,7 @@ public final class BankAccountMapper {
                 .firstName(req.getFirstName())
                 .lastName(req.getLastName())
                 .currency(Currency.valueOf(req.getCurrency()))
-                .balance(BigDecimal.valueOf(req.getBalance()))
+                .balance(decimalOf(req.hasBalanceMoney(), req.getBalanceMoney(), req.getBalance()))
                 .phone(req.getPhone())
                 .address(req.getAddress())
                 .updatedAt(LocalDateTime.now())
@@ -31,25 +41,76 @@ public final class BankAccountMapper {
     }
 
     public static BankAccountData toGrpc(BankAccount bankAccount) {
-        return BankAccountData.newBuilder()
-                .setId(bankAccount.getId().toString())
+        return toGrpc(BankAccountData.newBuilder(), bankAccount);
+    }
+
+    /**
+     * One builder is cleared and reused for every account of a response.
+     */
+    public static List<BankAccountData> toGrpc(Collection<BankAccount> bankAccounts) {
+        var builder = BankAccountData.newBuilder();
+        var result = new ArrayList<BankAccountData>(bankAccounts.size());
+        for (var bankAccount : bankAccounts) result.add(toGrpc(builder.clear(), bankAccount));
+        return result;
+    }
+
+    private static BankAccountData toGrpc(BankAccountData.Builder builder, BankAccount bankAccount) {
+        return builder
+                .setIdBytes(AsciiFields.uuid(bankAccount.getId()))
                 .setEmail(bankAccount.getEmail())
                 .setFirstName(bankAccount.getFirstName())
                 .setLastName(bankAccount.getLastName())
                 .setBalance(bankAccount.getBalance().doubleValue())
+                .setBalanceMoney(toMoney(bankAccount.getBalance()))
                 .setCurrency(bankAccount.getCurrency().name())
                 .setAddress(bankAccount.getAddress())
                 .setPhone(bankAccount.getPhone())
-                .setCreatedAt(bankAccount.getCreatedAt().toString())
-                .setUpdatedAt(bankAccount.getUpdatedAt().toString())
+                .setCreatedAtBytes(AsciiFields.dateTime(bankAccount.getCreatedAt()))
+                .setUpdatedAtBytes(AsciiFields.dateTime(bankAccount.getUpdatedAt()))
+                .build();
+    }
+
+    public static AccountChangeEvent toGrpc(AccountEvent event) {
+        return AccountChangeEvent.newBuilder()
+                .setOffset(event.offset())
+                .setIdBytes(AsciiFields.uuid(event.bankAccountId()))
+                .setType(AccountChangeType.valueOf(event.type().name()))
+                .setAmount(toMoney(event.amount()))
+                .setBalance(toMoney(event.balance()))
+                .setCurrency(event.currency().name())
+                .setCreatedAtBytes(AsciiFields.dateTime(event.createdAt()))
                 .build();
     }
 
+    /**
+     * Columns are filled in one pass over the accounts, balances are stored with the DECIMAL(16, 2) column scale.
+     */
+    public static AccountSnapshotBatch toSnapshotBatch(List<BankAccount> bankAccounts) {
+        var batch = AccountSnapshotBatch.newBuilder()
+                .addAllCurrencyDictionary(CURRENCY_DICTIONARY)
+                .setBalanceScale(SNAPSHOT_BALANCE_SCALE);
+
+        for (var bankAccount : bankAccounts) {
+            batch.addIdMostSigBits(bankAccount.getId().getMostSignificantBits())
+                    .addIdLeastSigBits(bankAccount.getId().getLeastSignificantBits())
+                    .addFirstName(bankAccount.getFirstName())
+                    .addLastName(bankAccount.getLastName())
+                    .addEmail(bankAccount.getEmail())
+                    .addAddress(bankAccount.getAddress())
+                    .addPhone(bankAccount.getPhone())
+                    .addCurrency(bankAccount.getCurrency().ordinal())
+                    .addBalanceUnscaled(bankAccount.getBalance().setScale(SNAPSHOT_BALANCE_SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact())
+                    .addCreatedAt(epochMicros(bankAccount.getCreatedAt()))
+                    .addUpdatedAt(epochMicros(bankAccount.getUpdatedAt()));
+        }
+        return batch.build();
+    }
+
     public static GetAllByBalanceWithPaginationResponse toPaginationGrpcResponse(Page<BankAccount> page) {
         return GetAllByBalanceWithPaginationResponse.newBuilder()
-                .addAllBankAccount(page.get().map(BankAccountMapper::toGrpc).toList())
+                .addAllBankAccount(toGrpc(page.getContent()))
                 .setTotalPages(page.getTotalPages())
-                .setTotalElements(page.getNumberOfElements())
+                .setTotalElements((int) Math.min(page.getTotalElements(), Integer.MAX_VALUE))
                 .setSize(page.getSize())
                 .setPage(page.getNumber())
                 .setIsLast(page.isLast())
@@ -57,6 +118,78 @@ public final class BankAccountMapper {
                 .build();
     }
 
+    public static GetAllByBalanceWithCursorResponse toCursorGrpcResponse(CursorPage<BankAccount> page) {
+        return GetAllByBalanceWithCursorResponse.newBuilder()
+                .addAllBankAccount(toGrpc(page.content()))
+                .setSize(page.size())
+                .setNextCursor(page.nextCursor())
+                .setHasNext(page.hasNext())
+                .build();
+    }
+
+    public static GetBankAccountsByIdsResponse toGetBankAccountsByIdsResponse(Collection<UUID> ids, List<BankAccount> bankAccounts) {
+        return GetBankAccountsByIdsResponse.newBuilder()
+                .addAllBankAccounts(toGrpc(bankAccounts))
+                .addAllMissingIds(missingIds(ids, bankAccounts))
+                .build();
+    }
+
+    public static BankAccountsByIdsResponseDto toBankAccountsByIdsHttpResponse(Collection<UUID> ids, List<BankAccount> bankAccounts) {
+        return new BankAccountsByIdsResponseDto(
+                bankAccounts.stream().map(BankAccountMapper::toSuccessHttpResponse).toList(),
+                missingIds(ids, bankAccounts));
+    }
+
+    public static Set<UUID> idsFromGrpc(GetBankAccountsByIdsRequest req) {
+        var ids = new LinkedHashSet<UUID>(req.getIdsCount());
+        req.getIdsList().forEach(id -> ids.add(UUID.fromString(id)));
+        return ids;
+    }
+
+    public static Set<UUID> idsFromGrpc(SubscribeBalanceUpdatesRequest req) {
+        var ids = new LinkedHashSet<UUID>(req.getIdsCount());
+        req.getIdsList().forEach(id -> ids.add(UUID.fromString(id)));
+        return ids;
+    }
+
+    public static BalanceUpdate toGrpc(BalanceChange change) {
+        return BalanceUpdate.newBuilder()
+                .setIdBytes(AsciiFields.uuid(change.id()))
+                .setBalance(toMoney(change.balance()))
+                .setCurrency(change.currency().name())
+                .setUpdatedAtBytes(AsciiFields.dateTime(change.updatedAt()))
+                .build();
+    }
+
+    public static BalanceUpdateDto toBalanceUpdateHttpResponse(BalanceChange change) {
+        return new BalanceUpdateDto(change.id().toString(), change.balance(), change.currency(), change.updatedAt());
+    }
+
+    public static GetBalanceStatsResponse toGrpc(BalanceStats stats) {
+        var response = GetBalanceStatsResponse.newBuilder()
+                .setCount(stats.count())
+                .setSum(toMoney(stats.sum()))
+                .setMean(toMoney(stats.mean()))
+                .setExact(stats.exact())
+                .setAsOf(stats.asOf().toString());
+        stats.quantiles().forEach(quantile -> response.addQuantiles(BalanceQuantile.newBuilder()
+                .setQuantile(quantile.quantile())
+                .setBalance(toMoney(quantile.balance()))));
+        return response.build();
+    }
+
+    public static BalanceStatsDto toBalanceStatsHttpResponse(BalanceStats stats) {
+        var quantiles = new LinkedHashMap<String, BigDecimal>(stats.quantiles().size());
+        stats.quantiles().forEach(quantile -> quantiles.put(String.valueOf(quantile.quantile()), quantile.balance()));
+        return new BalanceStatsDto(stats.count(), stats.sum(), stats.mean(), quantiles, stats.exact(), stats.asOf());
+    }
+
+    private static List<String> missingIds(Collection<UUID> ids, List<BankAccount> bankAccounts) {
+        var foundIds = new HashSet<UUID>(bankAccounts.size());
+        bankAccounts.forEach(bankAccount -> foundIds.add(bankAccount.getId()));
+        return ids.stream().filter(id -> !foundIds.contains(id)).map(UUID::toString).toList();
+    }
+
     public static BankAccountSuccessResponseDto toSuccessHttpResponse(BankAccount bankAccount) {
         return new BankAccountSuccessResponseDto(
                 bankAccount.getId().toString(),
@@ -87,17 +220,81 @@ public final class BankAccountMapper {
 
     public static FindByBalanceRequestDto findByBalanceRequestDtoFromGrpc(GetAllByBalanceRequest req) {
         return new FindByBalanceRequestDto(
-                BigDecimal.valueOf(req.getMin()),
-                BigDecimal.valueOf(req.getMax()),
+                decimalOf(req.hasMinMoney(), req.getMinMoney(), req.getMin()),
+                decimalOf(req.hasMaxMoney(), req.getMaxMoney(), req.getMax()),
                 PageRequest.of(req.getPage(), req.getSize())
         );
     }
 
     public static FindByBalanceRequestDto findByBalanceRequestDtoFromGrpc(GetAllByBalanceWithPaginationRequest req) {
         return new FindByBalanceRequestDto(
-                BigDecimal.valueOf(req.getMin()),
-                BigDecimal.valueOf(req.getMax()),
-                PageRequest.of(req.getPage(), req.getSize())
+                decimalOf(req.hasMinMoney(), req.getMinMoney(), req.getMin()),
+                decimalOf(req.hasMaxMoney(), req.getMaxMoney(), req.getMax()),
+                PageRequest.of(req.getPage(), req.getSize()),
+                req.getCountStrategy().isBlank() ? null : CountStrategy.valueOf(req.getCountStrategy().toUpperCase())
         );
     }
+
+    public static FindByBalanceCursorRequestDto findByBalanceCursorRequestDtoFromGrpc(GetAllByBalanceWithCursorRequest req) {
+        return new FindByBalanceCursorRequestDto(
+                decimalOf(req.hasMinMoney(), req.getMinMoney(), req.getMin()),
+                decimalOf(req.hasMaxMoney(), req.getMaxMoney(), req.getMax()),
+                BalanceCursor.fromToken(req.getCursor()),
+                req.getSize()
+        );
+    }
+
+    public static BigDecimal minOf(ExportByBalanceRequest req) {
+        return decimalOf(req.hasMinMoney(), req.getMinMoney(), req.getMin());
+    }
+
+    public static BigDecimal maxOf(ExportByBalanceRequest req) {
+        return decimalOf(req.hasMaxMoney(), req.getMaxMoney(), req.getMax());
+    }
+
+    public static BigDecimal minOf(GetBalanceStatsRequest req) {
+        return req.hasMin() ? fromMoney(req.getMin()) : null;
+    }
+
+    public static BigDecimal maxOf(GetBalanceStatsRequest req) {
+        return req.hasMax() ? fromMoney(req.getMax()) : null;
+    }
+
+    public static BigDecimal amountOf(DepositBalanceRequest req) {
+        return decimalOf(req.hasAmount(), req.getAmount(), req.getBalance());
+    }
+
+    public static BigDecimal amountOf(WithdrawBalanceRequest req) {
+        return decimalOf(req.hasAmount(), req.getAmount(), req.getBalance());
+    }
+
+    public static BigDecimal amountOf(TransactionRequest req) {
+        return decimalOf(req.hasAmountMoney(), req.getAmountMoney(), req.getAmount());
+    }
+
+    public static MoneyV1 toMoney(BigDecimal amount) {
+        return MoneyV1.newBuilder()
+                .setUnscaled(amount.unscaledValue().longValueExact())
+                .setScale(amount.scale())
+                .build();
+    }
+
+    /**
+     * Amounts are stored as DECIMAL(16, 2), a finer scale would be rounded by Postgres and an extreme one
+     * is rejected before it reaches BigDecimal arithmetic.
+     */
+    public static BigDecimal fromMoney(MoneyV1 money) {
+        if (money.getScale() < 0 || money.getScale() > MAX_MONEY_SCALE)
+            throw new InvalidAmountException(String.format("amount scale must be between 0 and %d, got %d", MAX_MONEY_SCALE, money.getScale()));
+        return BigDecimal.valueOf(money.getUnscaled(), money.getScale());
+    }
+
+    private static long epochMicros(LocalDateTime dateTime) {
+        var instant = dateTime.atZone(ZoneId.systemDefault()).toInstant();
+        return TimeUnit.SECONDS.toMicros(instant.getEpochSecond()) + TimeUnit.NANOSECONDS.toMicros(instant.getNano());
+    }
+
+    private static BigDecimal decimalOf(boolean hasMoney, MoneyV1 money, double legacyValue) {
+        return hasMoney ? fromMoney(money) : BigDecimal.valueOf(legacyValue);
+    }
 }
@@ -0,0 +1,88 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times statements by name from subscription until the result completes, fails or is cancelled,
+ * so the time includes waiting for a connection, compare with r2dbc.pool.acquire.
+ * Statements slower than r2dbc.metrics.slow-query-threshold are logged for a sampled fraction,
+ * with the number of bind parameters only, never their values.
+ */
+@Slf4j
+@Component
+public class QueryMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final Duration[] latencySlo;
+    private final long slowThresholdNanos;
+    private final double slowSampleRate;
+    private final Map<String, QueryTimers> timers = new ConcurrentHashMap<>();
+
+    public QueryMetrics(MeterRegistry meterRegistry,
+                        @Value(value = "${r2dbc.metrics.latency-slo}") Duration[] latencySlo,
+                        @Value(value = "${r2dbc.metrics.slow-query-threshold:200ms}") Duration slowThreshold,
+                        @Value(value = "${r2dbc.metrics.slow-query-sample-rate:0.1}") double slowSampleRate) {
+        this.meterRegistry = meterRegistry;
+        this.latencySlo = latencySlo;
+        this.slowThresholdNanos = slowThreshold.toNanos();
+        this.slowSampleRate = slowSampleRate;
+    }
+
+    public <T> Mono<T> timed(String query, int binds, Mono<T> statement) {
+        var queryTimers = timers(query);
+        return Mono.defer(() -> {
+            final var startedAt = System.nanoTime();
+            return statement.doFinally(signal -> record(query, binds, queryTimers, signal, startedAt));
+        });
+    }
+
+    public <T> Flux<T> timed(String query, int binds, Flux<T> statement) {
+        var queryTimers = timers(query);
+        return Flux.defer(() -> {
+            final var startedAt = System.nanoTime();
+            return statement.doFinally(signal -> record(query, binds, queryTimers, signal, startedAt));
+        });
+    }
+
+    private void record(String query, int binds, QueryTimers queryTimers, SignalType signal, long startedAt) {
+        var elapsedNanos = System.nanoTime() - startedAt;
+        var timer = switch (signal) {
+            case ON_ERROR -> queryTimers.error();
+            case CANCEL -> queryTimers.cancelled();
+            default -> queryTimers.success();
+        };
+        timer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+
+        if (elapsedNanos >= slowThresholdNanos && log.isWarnEnabled() && ThreadLocalRandom.current().nextDouble() < slowSampleRate)
+            log.warn("slow query: {}, outcome: {}, latency: {}ms, binds: {}", query, timer.getId().getTag("outcome"), TimeUnit.NANOSECONDS.toMillis(elapsedNanos), binds);
+    }
+
+    private QueryTimers timers(String query) {
+        return timers.computeIfAbsent(query, name -> new QueryTimers(timer(name, "success"), timer(name, "error"), timer(name, "cancelled")));
+    }
+
+    private Timer timer(String query, String outcome) {
+        return Timer.builder("r2dbc.query")
+                .description("Statement execution time including connection acquisition")
+                .tag("query", query)
+                .tag("outcome", outcome)
+                .serviceLevelObjectives(latencySlo)
+                .register(meterRegistry);
+    }
+
+    private record QueryTimers(Timer success, Timer error, Timer cancelled) {
+    }
+}
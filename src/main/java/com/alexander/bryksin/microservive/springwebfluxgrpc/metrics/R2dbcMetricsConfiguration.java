@@ -0,0 +1,67 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.r2dbc.pool.ConnectionPool;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+
+import java.time.Duration;
+
+@Configuration(proxyBeanMethods = false)
+public class R2dbcMetricsConfiguration {
+
+    /**
+     * Runs before post processors that wrap the timed pool, e.g. the replica routing and the tracing proxy.
+     */
+    public static final int TIMED_CONNECTION_FACTORY_ORDER = 0;
+
+    /**
+     * Wraps the pool created by Spring Boot, static so it does not force early initialization of this configuration.
+     */
+    @Bean
+    public static BeanPostProcessor timedConnectionFactoryPostProcessor(ObjectProvider<MeterRegistry> meterRegistry,
+                                                                        @Value(value = "${r2dbc.metrics.latency-slo}") Duration[] latencySlo,
+                                                                        @Value(value = "${r2dbc.statement-cache.size:256}") int statementCacheSize) {
+        return new TimedConnectionFactoryPostProcessor(meterRegistry, latencySlo, statementCacheSize);
+    }
+
+    /**
+     * @param statementCacheSize the preparedStatementCacheQueries the pool's connections were created with
+     */
+    public static TimedConnectionFactory timed(ConnectionPool pool, String poolName, MeterRegistry registry, Duration[] latencySlo, int statementCacheSize) {
+        return new TimedConnectionFactory(pool,
+                acquireTimer(registry, latencySlo, poolName, "success"),
+                acquireTimer(registry, latencySlo, poolName, "error"),
+                new StatementCacheMetrics(registry, poolName, statementCacheSize));
+    }
+
+    private static Timer acquireTimer(MeterRegistry registry, Duration[] latencySlo, String poolName, String outcome) {
+        return Timer.builder("r2dbc.pool.acquire")
+                .description("Time spent waiting for a pooled connection")
+                .tag("pool", poolName)
+                .tag("outcome", outcome)
+                .serviceLevelObjectives(latencySlo)
+                .register(registry);
+    }
+
+    private record TimedConnectionFactoryPostProcessor(ObjectProvider<MeterRegistry> meterRegistry,
+                                                       Duration[] latencySlo,
+                                                       int statementCacheSize) implements BeanPostProcessor, Ordered {
+
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) {
+            if (!(bean instanceof ConnectionPool pool)) return bean;
+            return timed(pool, "primary", meterRegistry.getObject(), latencySlo, statementCacheSize);
+        }
+
+        @Override
+        public int getOrder() {
+            return TIMED_CONNECTION_FACTORY_ORDER;
+        }
+    }
+}
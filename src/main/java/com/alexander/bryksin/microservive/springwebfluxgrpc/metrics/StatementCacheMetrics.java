@@ -0,0 +1,69 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.metrics;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.Wrapped;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Estimated hit ratio of the driver's per connection prepared statement cache (r2dbc-postgresql preparedStatementCacheQueries).
+ * The driver does not expose its cache, so every physical connection gets an LRU mirror of the same size fed with
+ * the parameterized SQL created on it, a statement is a hit when the mirror has already seen it. The mirror only
+ * approximates the driver: it cannot observe evictions or statements the driver prepares outside this path.
+ * Statements without parameters run over the simple query protocol and are not prepared, they are not counted.
+ */
+public class StatementCacheMetrics {
+
+    private final int cacheSize;
+    private final Counter hits;
+    private final Counter misses;
+    private final Cache<Connection, Map<String, Boolean>> preparedPerConnection = Caffeine.newBuilder().weakKeys().build();
+
+    public StatementCacheMetrics(MeterRegistry registry, String poolName, int cacheSize) {
+        this.cacheSize = cacheSize;
+        this.hits = counter(registry, poolName, "hit");
+        this.misses = counter(registry, poolName, "miss");
+    }
+
+    public Connection track(Connection connection) {
+        return new StatementTrackingConnection(connection, this);
+    }
+
+    void onStatement(Connection connection, String sql) {
+        if (sql.indexOf('$') < 0) return;
+        if (cacheSize == 0) {
+            misses.increment();
+            return;
+        }
+
+        var physical = connection instanceof Wrapped<?> wrapped && wrapped.unwrap() instanceof Connection unwrapped ? unwrapped : connection;
+        var prepared = preparedPerConnection.get(physical, key -> lruMap());
+        boolean hit;
+        synchronized (prepared) {
+            hit = prepared.put(sql, Boolean.TRUE) != null;
+        }
+        (hit ? hits : misses).increment();
+    }
+
+    private Map<String, Boolean> lruMap() {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return cacheSize > 0 && size() > cacheSize;
+            }
+        };
+    }
+
+    private static Counter counter(MeterRegistry registry, String poolName, String result) {
+        return Counter.builder("r2dbc.statement.cache")
+                .description("Estimated from an LRU mirror: parameterized statements found in or added to the per connection prepared statement cache")
+                .tag("pool", poolName)
+                .tag("result", result)
+                .register(registry);
+    }
+}
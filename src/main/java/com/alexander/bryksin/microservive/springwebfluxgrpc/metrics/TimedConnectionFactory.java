@@ -0,0 +1,58 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.metrics;
+
+import io.micrometer.core.instrument.Timer;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryMetadata;
+import io.r2dbc.spi.Wrapped;
+import org.springframework.beans.factory.DisposableBean;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times how long callers wait for a pooled connection. Implements {@link Wrapped} so the pool gauges
+ * registered by Spring Boot (r2dbc.pool.acquired, idle, pending, ...) still find the underlying pool.
+ * Acquired connections report their statements to {@link StatementCacheMetrics}.
+ */
+public class TimedConnectionFactory implements ConnectionFactory, Wrapped<ConnectionPool>, DisposableBean {
+
+    private final ConnectionPool pool;
+    private final Timer acquired;
+    private final Timer failed;
+    private final StatementCacheMetrics statementCacheMetrics;
+
+    public TimedConnectionFactory(ConnectionPool pool, Timer acquired, Timer failed, StatementCacheMetrics statementCacheMetrics) {
+        this.pool = pool;
+        this.acquired = acquired;
+        this.failed = failed;
+        this.statementCacheMetrics = statementCacheMetrics;
+    }
+
+    @Override
+    public Mono<Connection> create() {
+        return Mono.defer(() -> {
+            final var startedAt = System.nanoTime();
+            return pool.create()
+                    .doOnSuccess(connection -> acquired.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS))
+                    .doOnError(ex -> failed.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS))
+                    .map(statementCacheMetrics::track);
+        });
+    }
+
+    @Override
+    public ConnectionFactoryMetadata getMetadata() {
+        return pool.getMetadata();
+    }
+
+    @Override
+    public ConnectionPool unwrap() {
+        return pool;
+    }
+
+    @Override
+    public void destroy() {
+        pool.dispose();
+    }
+}
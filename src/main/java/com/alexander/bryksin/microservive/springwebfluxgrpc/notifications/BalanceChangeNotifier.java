@@ -0,0 +1,148 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.notifications;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BalanceChange;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.r2dbc.postgresql.api.Notification;
+import io.r2dbc.postgresql.api.PostgresqlConnection;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.r2dbc.R2dbcProperties;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes balance changes to subscribers of a set of account ids. All of them are served by one dedicated
+ * connection outside the pool that LISTENs on bank_account_balance, each notification is routed only to the
+ * subscribers of its account. Every subscriber has a bounded buffer, when it is full the oldest change is dropped,
+ * a later change of the same account carries the newer balance anyway.
+ * Changes committed while the connection is being re-established are not delivered.
+ */
+@Slf4j
+@Component
+public class BalanceChangeNotifier implements DisposableBean {
+
+    private static final String CHANNEL = "bank_account_balance";
+
+    private final R2dbcProperties r2dbcProperties;
+    private final int subscriberBufferSize;
+    private final int maxIds;
+    private final Counter dropped;
+    private final AtomicInteger subscribers;
+    private final Map<UUID, Channel> channels = new ConcurrentHashMap<>();
+
+    private volatile Disposable listener;
+
+    public BalanceChangeNotifier(R2dbcProperties r2dbcProperties,
+                                 MeterRegistry meterRegistry,
+                                 @Value(value = "${bank-account.balance-updates.subscriber-buffer-size:256}") int subscriberBufferSize,
+                                 @Value(value = "${bank-account.balance-updates.max-ids:500}") int maxIds) {
+        this.r2dbcProperties = r2dbcProperties;
+        this.subscriberBufferSize = subscriberBufferSize;
+        this.maxIds = maxIds;
+        this.dropped = Counter.builder("bank_account.balance_updates.dropped")
+                .description("Balance changes dropped because a subscriber fell behind")
+                .register(meterRegistry);
+        this.subscribers = meterRegistry.gauge("bank_account.balance_updates.subscribers", new AtomicInteger());
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        // transient errors: the backoff starts over once the connection is listening again
+        listener = Flux.usingWhen(connect(), this::listen, PostgresqlConnection::close)
+                .doOnError(ex -> log.warn("balance notifications interrupted: {}", ex.getLocalizedMessage()))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(30)).transientErrors(true))
+                .subscribe();
+    }
+
+    public Flux<BalanceChange> subscribe(Set<UUID> ids) {
+        if (ids.isEmpty() || ids.size() > maxIds)
+            return Flux.error(new IllegalArgumentException(String.format("between 1 and %d ids are allowed, got %d", maxIds, ids.size())));
+
+        return Flux.defer(() -> {
+                    subscribers.incrementAndGet();
+                    var changes = ids.stream().map(id -> channels.compute(id, (key, channel) -> (channel != null ? channel : new Channel()).retain()));
+                    return Flux.merge(changes.map(channel -> channel.sink.asFlux()).toList());
+                })
+                .onBackpressureBuffer(subscriberBufferSize, change -> dropped.increment(), BufferOverflowStrategy.DROP_OLDEST)
+                .doFinally(signal -> {
+                    subscribers.decrementAndGet();
+                    ids.forEach(id -> channels.computeIfPresent(id, (key, channel) -> channel.release() ? null : channel));
+                });
+    }
+
+    private Mono<PostgresqlConnection> connect() {
+        var options = ConnectionFactoryOptions.parse(r2dbcProperties.getUrl()).mutate()
+                .option(ConnectionFactoryOptions.USER, r2dbcProperties.getUsername())
+                .option(ConnectionFactoryOptions.PASSWORD, r2dbcProperties.getPassword())
+                .build();
+        return Mono.from(ConnectionFactories.get(options).create()).cast(PostgresqlConnection.class);
+    }
+
+    /**
+     * Emits once the LISTEN succeeded, then dispatches notifications until the connection closes.
+     */
+    private Flux<Boolean> listen(PostgresqlConnection connection) {
+        var notifications = connection.getNotifications()
+                .doOnNext(this::dispatch)
+                .then(Mono.<Boolean>error(new IllegalStateException("balance notification connection closed")));
+
+        return connection.createStatement("LISTEN " + CHANNEL).execute()
+                .flatMap(result -> result.getRowsUpdated())
+                .then(Mono.just(true))
+                .doOnNext(listening -> log.info("listening for balance notifications"))
+                .concatWith(notifications);
+    }
+
+    private void dispatch(Notification notification) {
+        if (notification.getParameter() == null) return;
+        try {
+            var change = BalanceChange.parse(notification.getParameter());
+            var channel = channels.get(change.id());
+            if (channel != null) channel.sink.tryEmitNext(change);
+        } catch (IllegalArgumentException ex) {
+            log.warn("cannot parse balance notification: {}", ex.getLocalizedMessage());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (listener != null) listener.dispose();
+    }
+
+    /**
+     * Subscribers of one account, removed with the last of them. retain and release run inside channels.compute,
+     * so a subscriber never gets a channel that is being removed.
+     */
+    private static class Channel {
+
+        private final Sinks.Many<BalanceChange> sink = Sinks.many().multicast().directBestEffort();
+        private int references;
+
+        Channel retain() {
+            references++;
+            return this;
+        }
+
+        boolean release() {
+            return --references == 0;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.replica;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.context.ContextView;
+
+/**
+ * Marks reads that may be served by the replica, read-only transactions are marked by
+ * ReadOnlyRoutingTransactionManager. Without a replica configured the mark is ignored.
+ */
+public final class ReadOnlyRouting {
+
+    private static final String READ_ONLY_KEY = ReadOnlyRouting.class.getName() + ".READ_ONLY";
+
+    private ReadOnlyRouting() {
+    }
+
+    public static <T> Mono<T> readOnly(Mono<T> statement) {
+        return statement.contextWrite(context -> context.put(READ_ONLY_KEY, true));
+    }
+
+    public static <T> Flux<T> readOnly(Flux<T> statement) {
+        return statement.contextWrite(context -> context.put(READ_ONLY_KEY, true));
+    }
+
+    static <T> Mono<T> readOnly(Mono<T> statement, boolean readOnly) {
+        return readOnly ? readOnly(statement) : statement;
+    }
+
+    static boolean isReadOnly(ContextView context) {
+        return context.getOrDefault(READ_ONLY_KEY, false);
+    }
+}
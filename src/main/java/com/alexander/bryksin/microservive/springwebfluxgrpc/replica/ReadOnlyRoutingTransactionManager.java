@@ -0,0 +1,23 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.replica;
+
+import io.r2dbc.spi.ConnectionFactory;
+import org.springframework.r2dbc.connection.R2dbcTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.reactive.TransactionSynchronizationManager;
+import reactor.core.publisher.Mono;
+
+/**
+ * The read-only flag of a transaction is only published to the synchronization after its connection has been
+ * obtained, too late for routing, so it is passed to the connection factory in the subscriber context instead.
+ */
+public class ReadOnlyRoutingTransactionManager extends R2dbcTransactionManager {
+
+    public ReadOnlyRoutingTransactionManager(ConnectionFactory connectionFactory) {
+        super(connectionFactory);
+    }
+
+    @Override
+    protected Mono<Void> doBegin(TransactionSynchronizationManager synchronizationManager, Object transaction, TransactionDefinition definition) {
+        return ReadOnlyRouting.readOnly(super.doBegin(synchronizationManager, transaction, definition), definition.isReadOnly());
+    }
+}
@@ -0,0 +1,80 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.replica;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.metrics.R2dbcMetricsConfiguration;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.metrics.TimedConnectionFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.postgresql.PostgresqlConnectionFactoryProvider;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.actuate.metrics.r2dbc.ConnectionPoolMetrics;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.transaction.ReactiveTransactionManager;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+/**
+ * Routes read-only transactions to a hot standby, only active when r2dbc.replica.url is set.
+ * The replica has its own pool, sized with r2dbc.replica.pool.*, timed and exposed like the primary one with pool=replica.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "r2dbc.replica.url")
+public class ReplicaRoutingConfiguration {
+
+    @Bean
+    public static BeanPostProcessor replicaRoutingPostProcessor(ObjectProvider<MeterRegistry> meterRegistry,
+                                                                @Value(value = "${r2dbc.replica.url}") String url,
+                                                                @Value(value = "${r2dbc.replica.username:${spring.r2dbc.username}}") String username,
+                                                                @Value(value = "${r2dbc.replica.password:${spring.r2dbc.password}}") String password,
+                                                                @Value(value = "${r2dbc.replica.pool.initial-size:10}") int initialSize,
+                                                                @Value(value = "${r2dbc.replica.pool.max-size:30}") int maxSize,
+                                                                @Value(value = "${r2dbc.replica.max-staleness:1s}") Duration maxStaleness,
+                                                                @Value(value = "${r2dbc.replica.health-check-interval:2s}") Duration healthCheckInterval,
+                                                                @Value(value = "${r2dbc.metrics.latency-slo}") Duration[] latencySlo,
+                                                                @Value(value = "${r2dbc.statement-cache.size:256}") int statementCacheSize) {
+        return new ReplicaRoutingPostProcessor(primary -> {
+            var options = ConnectionFactoryOptions.parse(url).mutate()
+                    .option(ConnectionFactoryOptions.USER, username)
+                    .option(ConnectionFactoryOptions.PASSWORD, password)
+                    .option(PostgresqlConnectionFactoryProvider.PREPARED_STATEMENT_CACHE_QUERIES, statementCacheSize)
+                    .build();
+            var pool = new ConnectionPool(ConnectionPoolConfiguration.builder(ConnectionFactories.get(options))
+                    .name("replica")
+                    .initialSize(initialSize)
+                    .maxSize(maxSize)
+                    .build());
+            var registry = meterRegistry.getObject();
+            new ConnectionPoolMetrics(pool, "replica", Tags.empty()).bindTo(registry);
+            return new ReplicaRoutingConnectionFactory(primary, R2dbcMetricsConfiguration.timed(pool, "replica", registry, latencySlo, statementCacheSize),
+                    registry, maxStaleness, healthCheckInterval);
+        });
+    }
+
+    @Bean
+    public ReactiveTransactionManager transactionManager(ConnectionFactory connectionFactory) {
+        return new ReadOnlyRoutingTransactionManager(connectionFactory);
+    }
+
+    private record ReplicaRoutingPostProcessor(Function<ConnectionFactory, ConnectionFactory> routing) implements BeanPostProcessor, Ordered {
+
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) {
+            return bean instanceof TimedConnectionFactory primary ? routing.apply(primary) : bean;
+        }
+
+        @Override
+        public int getOrder() {
+            return R2dbcMetricsConfiguration.TIMED_CONNECTION_FACTORY_ORDER + 1;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.replica;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.Wrapped;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.r2dbc.connection.lookup.AbstractRoutingConnectionFactory;
+import org.springframework.r2dbc.core.DatabaseClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Sends reads marked by ReadOnlyRouting to the replica pool and everything else to the primary.
+ * The replica is probed every health-check-interval, reads fall back to the primary while the probe fails
+ * or while the replica replays WAL more than max-staleness behind, and return once it has caught up.
+ * Routing only bounds the staleness, it does not give read-your-writes: a read-only query right after a deposit
+ * may still see the balance from before it, up to max-staleness old. Reads that must see the caller's own write,
+ * such as getBankAccountById and the account cache behind it, are not marked and stay on the primary.
+ */
+@Slf4j
+public class ReplicaRoutingConnectionFactory extends AbstractRoutingConnectionFactory implements Wrapped<ConnectionFactory>, DisposableBean {
+
+    private static final String PRIMARY = "primary";
+    private static final String REPLICA = "replica";
+
+    // 0 when every received WAL record has been replayed, otherwise the age of the last replayed transaction
+    private static final String LAG_QUERY = """
+            SELECT CASE
+                       WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0
+                       ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) END::FLOAT8 AS lag_seconds""";
+
+    private final ConnectionFactory primary;
+    private final ConnectionFactory replica;
+    private final double maxStalenessSeconds;
+    private final Disposable healthCheck;
+
+    private volatile boolean replicaUsable;
+    private volatile boolean probed;
+    private volatile double lagSeconds = Double.NaN;
+
+    public ReplicaRoutingConnectionFactory(ConnectionFactory primary, ConnectionFactory replica, MeterRegistry meterRegistry,
+                                           Duration maxStaleness, Duration healthCheckInterval) {
+        this.primary = primary;
+        this.replica = replica;
+        this.maxStalenessSeconds = maxStaleness.toNanos() / 1e9;
+
+        setTargetConnectionFactories(Map.of(PRIMARY, primary, REPLICA, replica));
+        setDefaultTargetConnectionFactory(primary);
+        afterPropertiesSet();
+
+        Gauge.builder("r2dbc.replica.lag", this, factory -> factory.lagSeconds)
+                .description("Replay lag of the read replica, NaN while it cannot be probed")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        Gauge.builder("r2dbc.replica.usable", this, factory -> factory.replicaUsable ? 1 : 0)
+                .description("1 while read-only queries are routed to the replica")
+                .register(meterRegistry);
+
+        var lagProbe = DatabaseClient.create(replica).sql(LAG_QUERY)
+                .map(row -> row.get("lag_seconds", Double.class))
+                .one();
+        this.healthCheck = Flux.interval(Duration.ZERO, healthCheckInterval)
+                .onBackpressureDrop()
+                .concatMap(tick -> lagProbe
+                        .timeout(healthCheckInterval)
+                        .doOnNext(this::onLag)
+                        .onErrorResume(ex -> {
+                            onProbeFailure(ex);
+                            return Mono.empty();
+                        }))
+                .subscribe();
+    }
+
+    @Override
+    protected Mono<Object> determineCurrentLookupKey() {
+        return Mono.deferContextual(context -> Mono.just(replicaUsable && ReadOnlyRouting.isReadOnly(context) ? REPLICA : PRIMARY));
+    }
+
+    private void onLag(double lag) {
+        lagSeconds = lag;
+        var usable = lag <= maxStalenessSeconds;
+        if (usable != replicaUsable || !probed) log.info("read replica {}, lag: {}s", usable ? "in use" : "behind, reading from the primary", lag);
+        replicaUsable = usable;
+        probed = true;
+    }
+
+    private void onProbeFailure(Throwable ex) {
+        lagSeconds = Double.NaN;
+        if (replicaUsable || !probed) log.warn("read replica unavailable, reading from the primary: {}", ex.toString());
+        replicaUsable = false;
+        probed = true;
+    }
+
+    @Override
+    public ConnectionFactory unwrap() {
+        return primary;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        healthCheck.dispose();
+        if (replica instanceof DisposableBean disposable) disposable.destroy();
+        if (primary instanceof DisposableBean disposable) disposable.destroy();
+    }
+}
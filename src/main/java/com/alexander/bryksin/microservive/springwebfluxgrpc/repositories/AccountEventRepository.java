@@ -0,0 +1,31 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.repositories;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.AccountEvent;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+
+/**
+ * Outbox of account changes. Balance updates and bulk inserts append their events in the same statement,
+ * see BankAccountPostgresRepositoryImpl, this repository appends the rest and publishes them.
+ */
+public interface AccountEventRepository {
+
+    Mono<Void> appendCreated(BankAccount bankAccount);
+
+    /**
+     * Assigns offsets to up to limit unpublished events in the order they were appended.
+     * Only one relay publishes at a time, so offsets become visible in increasing order.
+     *
+     * @return number of published events, 0 when there are none or another relay holds the lock
+     */
+    Mono<Integer> publishPending(int limit);
+
+    Flux<AccountEvent> findPublishedAfter(long offset, int limit);
+
+    Mono<Long> findLastOffset();
+
+    Mono<Long> deletePublishedBefore(Instant publishedBefore);
+}
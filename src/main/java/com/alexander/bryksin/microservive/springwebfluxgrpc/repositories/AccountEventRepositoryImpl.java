@@ -0,0 +1,118 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.repositories;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.AccountEvent;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.AccountEventType;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.Currency;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.metrics.QueryMetrics;
+import lombok.RequiredArgsConstructor;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+@Repository
+@RequiredArgsConstructor
+public class AccountEventRepositoryImpl implements AccountEventRepository {
+
+    private final DatabaseClient databaseClient;
+    private final QueryMetrics queryMetrics;
+
+    private static final String APPEND_CREATED_QUERY = """
+            INSERT INTO microservices.account_events (bank_account_id, event_type, amount, balance, currency)
+            VALUES (:id, 'CREATED', :balance, :balance, :currency)""";
+
+    // the advisory lock is held until the statement commits, so a relay on another instance cannot commit
+    // higher offsets first, SKIP LOCKED keeps it from waiting on rows locked by anyone else
+    private static final String PUBLISH_PENDING_QUERY = """
+            WITH relay_lock AS (
+                SELECT pg_try_advisory_xact_lock(hashtext('microservices.account_events')) AS acquired),
+            batch AS (
+                SELECT e.event_id FROM microservices.account_events e, relay_lock
+                WHERE relay_lock.acquired AND e.event_offset IS NULL
+                ORDER BY e.event_id
+                LIMIT :limit
+                FOR UPDATE OF e SKIP LOCKED),
+            numbered AS (
+                SELECT event_id, nextval('microservices.account_events_offset_seq') AS event_offset
+                FROM (SELECT event_id FROM batch ORDER BY event_id) ordered)
+            UPDATE microservices.account_events e
+            SET event_offset = numbered.event_offset, published_at = CURRENT_TIMESTAMP
+            FROM numbered
+            WHERE e.event_id = numbered.event_id""";
+
+    private static final String FIND_PUBLISHED_AFTER_QUERY = """
+            SELECT * FROM microservices.account_events
+            WHERE event_offset > :offset
+            ORDER BY event_offset
+            LIMIT :limit""";
+
+    private static final String FIND_LAST_OFFSET_QUERY = "SELECT COALESCE(MAX(event_offset), 0) AS last_offset FROM microservices.account_events";
+
+    private static final String DELETE_PUBLISHED_QUERY = "DELETE FROM microservices.account_events WHERE published_at < :publishedBefore";
+
+    @Override
+    public Mono<Void> appendCreated(BankAccount bankAccount) {
+        var append = databaseClient.sql(APPEND_CREATED_QUERY)
+                .bind("id", bankAccount.getId())
+                .bind("balance", bankAccount.getBalance())
+                .bind("currency", bankAccount.getCurrency().name())
+                .fetch()
+                .rowsUpdated();
+
+        return queryMetrics.timed("appendAccountEvent", 3, append).then();
+    }
+
+    @Override
+    public Mono<Integer> publishPending(int limit) {
+        var publish = databaseClient.sql(PUBLISH_PENDING_QUERY)
+                .bind("limit", limit)
+                .fetch()
+                .rowsUpdated();
+
+        return queryMetrics.timed("publishAccountEvents", 1, publish);
+    }
+
+    @Override
+    public Flux<AccountEvent> findPublishedAfter(long offset, int limit) {
+        var events = databaseClient.sql(FIND_PUBLISHED_AFTER_QUERY)
+                .bind("offset", offset)
+                .bind("limit", limit)
+                .map(row -> new AccountEvent(
+                        row.get("event_offset", Long.class),
+                        row.get("bank_account_id", UUID.class),
+                        AccountEventType.valueOf(row.get("event_type", String.class)),
+                        row.get("amount", BigDecimal.class),
+                        row.get("balance", BigDecimal.class),
+                        Currency.valueOf(row.get("currency", String.class)),
+                        row.get("created_at", LocalDateTime.class)))
+                .all();
+
+        return queryMetrics.timed("findAccountEventsAfter", 2, events);
+    }
+
+    @Override
+    public Mono<Long> findLastOffset() {
+        var lastOffset = databaseClient.sql(FIND_LAST_OFFSET_QUERY)
+                .map(row -> row.get("last_offset", Long.class))
+                .one();
+
+        return queryMetrics.timed("findLastAccountEventOffset", 0, lastOffset);
+    }
+
+    @Override
+    public Mono<Long> deletePublishedBefore(Instant publishedBefore) {
+        var deleted = databaseClient.sql(DELETE_PUBLISHED_QUERY)
+                .bind("publishedBefore", publishedBefore)
+                .fetch()
+                .rowsUpdated()
+                .map(Integer::longValue);
+
+        return queryMetrics.timed("deletePublishedAccountEvents", 1, deleted);
+    }
+}
@@ -0,0 +1,22 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.repositories;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BalanceHistogram;
+import reactor.core.publisher.Mono;
+
+/**
+ * Balance histogram maintained by the bank_accounts triggers, see V6__balance_histogram.sql.
+ */
+public interface BalanceHistogramRepository {
+
+    /**
+     * Adds up to limit pending deltas to the bucket totals and deletes them, safe to run on several instances at once.
+     *
+     * @return number of folded deltas
+     */
+    Mono<Long> foldDeltas(int limit);
+
+    /**
+     * Bucket totals including the deltas not folded yet.
+     */
+    Mono<BalanceHistogram> find();
+}
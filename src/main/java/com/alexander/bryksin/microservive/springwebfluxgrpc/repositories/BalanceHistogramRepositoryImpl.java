@@ -0,0 +1,84 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.repositories;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BalanceHistogram;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.metrics.QueryMetrics;
+import lombok.RequiredArgsConstructor;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+@Repository
+@RequiredArgsConstructor
+public class BalanceHistogramRepositoryImpl implements BalanceHistogramRepository {
+
+    private final DatabaseClient databaseClient;
+    private final QueryMetrics queryMetrics;
+
+    // SKIP LOCKED leaves the deltas another instance is folding to it
+    private static final String FOLD_DELTAS_QUERY = """
+            WITH folded AS (
+                DELETE FROM microservices.balance_histogram_deltas
+                WHERE delta_id IN (
+                    SELECT delta_id FROM microservices.balance_histogram_deltas
+                    ORDER BY delta_id
+                    LIMIT :limit
+                    FOR UPDATE SKIP LOCKED)
+                RETURNING bucket, accounts, balance_sum),
+            totals AS (
+                UPDATE microservices.balance_histogram h
+                SET accounts = h.accounts + t.accounts, balance_sum = h.balance_sum + t.balance_sum
+                FROM (SELECT bucket, sum(accounts) AS accounts, sum(balance_sum) AS balance_sum FROM folded GROUP BY bucket) t
+                WHERE h.bucket = t.bucket)
+            SELECT count(*) AS folded FROM folded""";
+
+    private static final String FIND_QUERY = """
+            SELECT h.lower_bound,
+                   h.accounts + COALESCE(d.accounts, 0) AS accounts,
+                   h.balance_sum + COALESCE(d.balance_sum, 0) AS balance_sum
+            FROM microservices.balance_histogram h
+            LEFT JOIN (
+                SELECT bucket, sum(accounts) AS accounts, sum(balance_sum) AS balance_sum
+                FROM microservices.balance_histogram_deltas
+                GROUP BY bucket) d ON d.bucket = h.bucket
+            ORDER BY h.bucket""";
+
+    @Override
+    public Mono<Long> foldDeltas(int limit) {
+        var fold = databaseClient.sql(FOLD_DELTAS_QUERY)
+                .bind("limit", limit)
+                .map(row -> row.get("folded", Long.class))
+                .one();
+
+        return queryMetrics.timed("foldBalanceHistogramDeltas", 1, fold);
+    }
+
+    @Override
+    public Mono<BalanceHistogram> find() {
+        var buckets = databaseClient.sql(FIND_QUERY)
+                .map(row -> new Bucket(
+                        BalanceHistogram.toCents(row.get("lower_bound", BigDecimal.class)),
+                        row.get("accounts", BigDecimal.class).longValueExact(),
+                        row.get("balance_sum", BigDecimal.class)))
+                .all()
+                .collectList()
+                .map(rows -> {
+                    var lowerBounds = new long[rows.size()];
+                    var counts = new long[rows.size()];
+                    var sums = new BigDecimal[rows.size()];
+                    for (int i = 0; i < rows.size(); i++) {
+                        lowerBounds[i] = rows.get(i).lowerBound();
+                        counts[i] = rows.get(i).accounts();
+                        sums[i] = rows.get(i).balanceSum();
+                    }
+                    return new BalanceHistogram(lowerBounds, counts, sums, Instant.now());
+                });
+
+        return queryMetrics.timed("findBalanceHistogram", 0, buckets);
+    }
+
+    private record Bucket(long lowerBound, long accounts, BigDecimal balanceSum) {
+    }
+}
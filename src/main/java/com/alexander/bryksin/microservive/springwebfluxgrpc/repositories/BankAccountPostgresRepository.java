@@ -1,12 +1,64 @@
 package com.alexander.bryksin.microservive.springwebfluxgrpc.repositories;
 
 import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.IdempotencyRecord;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.BalanceCursor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
 
 public interface BankAccountPostgresRepository {
     Mono<Page<BankAccount>> findAllBankAccountsByBalance(BigDecimal min, BigDecimal max, Pageable pageable);
+
+    Mono<Page<BankAccount>> findAllBankAccountsByBalance(BigDecimal min, BigDecimal max, Pageable pageable, Mono<Long> totalCount);
+
+    /**
+     * Unsorted pages run as one constant statement with the limit and offset bound, so every page reuses the same
+     * prepared statement, sorted pages fall back to the template query.
+     */
+    Flux<BankAccount> findBankAccountByBalanceBetween(BigDecimal min, BigDecimal max, Pageable pageable);
+
+    Mono<Long> countBankAccountsByBalance(BigDecimal min, BigDecimal max);
+
+    Mono<Long> estimateBankAccountsByBalance(BigDecimal min, BigDecimal max);
+
+    Mono<BankAccount> updateBalance(UUID id, BigDecimal amount);
+
+    /**
+     * Adds the merged amounts in one UPDATE when no running total of them overdraws the account.
+     * Appends one account event per amount, in order, in the same statement.
+     */
+    Mono<BankAccount> updateBalance(UUID id, List<BigDecimal> amounts);
+
+    /**
+     * Same as updateBalance, and records the new balance on the idempotency key claimed in the current transaction.
+     */
+    Mono<BankAccount> updateBalance(UUID id, BigDecimal amount, String idempotencyKey);
+
+    /**
+     * Inserts the key, true when it was not used before. Waits for a concurrent transaction holding the same key
+     * to finish, so false means the key is committed and findIdempotencyRecord returns its outcome.
+     */
+    Mono<Boolean> claimIdempotencyKey(String idempotencyKey, UUID id, BigDecimal amount);
+
+    Mono<IdempotencyRecord> findIdempotencyRecord(String idempotencyKey);
+
+    Mono<Long> deleteIdempotencyRecordsBefore(Instant createdBefore);
+
+    /**
+     * Inserts the accounts with one statement that binds each column as an array, so the SQL text and the
+     * bind count do not depend on the number of accounts.
+     */
+    Flux<BankAccount> insertAll(List<BankAccount> bankAccounts);
+
+    Flux<BankAccount> findAllByIds(Collection<UUID> ids);
+
+    Flux<BankAccount> findBankAccountsByBalanceAfter(BigDecimal min, BigDecimal max, BalanceCursor cursor, int limit);
 }
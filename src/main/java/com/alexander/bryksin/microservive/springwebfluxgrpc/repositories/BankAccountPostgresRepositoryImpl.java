@@ -1,11 +1,14 @@
 package com.alexander.bryksin.microservive.springwebfluxgrpc.repositories;
 
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.AccountEventType;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.IdempotencyRecord;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.BalanceCursor;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.metrics.QueryMetrics;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.tracing.SpanTagger;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cloud.sleuth.Tracer;
 import org.springframework.cloud.sleuth.annotation.NewSpan;
-import org.springframework.cloud.sleuth.annotation.SpanTag;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
@@ -14,10 +17,16 @@ import org.springframework.data.relational.core.query.Criteria;
 import org.springframework.data.relational.core.query.Query;
 import org.springframework.r2dbc.core.DatabaseClient;
 import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.math.BigDecimal;
-import java.util.Optional;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
 
 import static com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount.BALANCE;
 
@@ -29,37 +38,346 @@ public class BankAccountPostgresRepositoryImpl implements BankAccountPostgresRep
 
     private final DatabaseClient databaseClient;
     private final R2dbcEntityTemplate template;
-    private final Tracer tracer;
+    private final SpanTagger spanTagger;
+    private final QueryMetrics queryMetrics;
+
+    private static final Pattern PLAN_ROWS_PATTERN = Pattern.compile("rows=(\\d+)");
+    // one array per column, whatever the batch size
+    private static final int INSERT_ALL_BINDS = 9;
+
+    // every write appends its outbox event in the same statement, so no transaction has to be held across round trips
+    private static final String UPDATE_BALANCE_QUERY = """
+            WITH updated AS (
+                UPDATE microservices.bank_accounts
+                SET balance = balance + :amount, updated_at = CURRENT_TIMESTAMP
+                WHERE bank_account_id = :id AND balance + :lowest >= 0
+                RETURNING *),
+            event AS (
+                INSERT INTO microservices.account_events (bank_account_id, event_type, amount, balance, currency)
+                SELECT bank_account_id, :eventType, :amount, balance, currency FROM updated)
+            SELECT * FROM updated""";
+
+    // the merged amounts are applied as one UPDATE, each one still gets its own event with the balance right after it
+    private static final String UPDATE_BALANCE_MERGED_QUERY = """
+            WITH updated AS (
+                UPDATE microservices.bank_accounts
+                SET balance = balance + :amount, updated_at = CURRENT_TIMESTAMP
+                WHERE bank_account_id = :id AND balance + :lowest >= 0
+                RETURNING *),
+            events AS (
+                INSERT INTO microservices.account_events (bank_account_id, event_type, amount, balance, currency)
+                SELECT u.bank_account_id,
+                       CASE WHEN a.amount < 0 THEN 'WITHDRAWN' ELSE 'DEPOSITED' END,
+                       a.amount,
+                       u.balance - :amount + SUM(a.amount) OVER (ORDER BY a.ordinal),
+                       u.currency
+                FROM updated u, unnest(CAST(:amounts AS DECIMAL(16, 2)[])) WITH ORDINALITY AS a(amount, ordinal)
+                ORDER BY a.ordinal)
+            SELECT * FROM updated""";
+
+    private static final String UPDATE_BALANCE_IDEMPOTENT_QUERY = """
+            WITH updated AS (
+                UPDATE microservices.bank_accounts
+                SET balance = balance + :amount, updated_at = CURRENT_TIMESTAMP
+                WHERE bank_account_id = :id AND balance + :lowest >= 0
+                RETURNING *),
+            recorded AS (
+                UPDATE microservices.idempotency_keys k
+                SET balance = updated.balance, updated_at = updated.updated_at
+                FROM updated
+                WHERE k.idempotency_key = :key),
+            event AS (
+                INSERT INTO microservices.account_events (bank_account_id, event_type, amount, balance, currency)
+                SELECT bank_account_id, :eventType, :amount, balance, currency FROM updated)
+            SELECT * FROM updated""";
+
+    private static final String CLAIM_IDEMPOTENCY_KEY_QUERY = """
+            INSERT INTO microservices.idempotency_keys (idempotency_key, bank_account_id, amount)
+            VALUES (:key, :id, :amount)
+            ON CONFLICT DO NOTHING
+            RETURNING idempotency_key""";
+
+    private static final String FIND_IDEMPOTENCY_RECORD_QUERY = "SELECT * FROM microservices.idempotency_keys WHERE idempotency_key = :key";
+
+    private static final String DELETE_IDEMPOTENCY_RECORDS_QUERY = "DELETE FROM microservices.idempotency_keys WHERE created_at < :createdBefore";
+
+    // the rows are bound as column arrays, so every batch size shares one prepared statement
+    private static final String INSERT_ALL_QUERY = """
+            WITH inserted AS (
+                INSERT INTO microservices.bank_accounts
+                (first_name, last_name, email, address, phone, balance, currency, created_at, updated_at)
+                SELECT * FROM unnest(:firstNames::varchar[], :lastNames::varchar[], :emails::varchar[], :addresses::varchar[],
+                    :phones::varchar[], :balances::numeric[], :currencies::varchar[], :createdAts::timestamptz[], :updatedAts::timestamptz[])
+                ON CONFLICT DO NOTHING
+                RETURNING *),
+            events AS (
+                INSERT INTO microservices.account_events (bank_account_id, event_type, amount, balance, currency)
+                SELECT bank_account_id, 'CREATED', balance, balance, currency FROM inserted)
+            SELECT * FROM inserted""";
+
+    private static final String FIND_ALL_BY_IDS_QUERY = "SELECT * FROM microservices.bank_accounts WHERE bank_account_id = ANY(:ids)";
+
+    // limit and offset are bound instead of rendered into the SQL, so all pages share one prepared statement
+    private static final String FIND_BY_BALANCE_PAGE_QUERY = """
+            SELECT * FROM microservices.bank_accounts
+            WHERE balance BETWEEN :min AND :max
+            LIMIT :limit OFFSET :offset""";
+    private static final int FIND_BY_BALANCE_PAGE_BINDS = 4;
+    // sorted and unpaged requests fall back to the template query, which binds only min and max
+    private static final int FIND_BY_BALANCE_TEMPLATE_BINDS = 2;
+
+    private static final String FIND_BY_BALANCE_FIRST_QUERY = """
+            SELECT * FROM microservices.bank_accounts
+            WHERE balance BETWEEN :min AND :max
+            ORDER BY balance, bank_account_id
+            LIMIT :limit""";
+
+    private static final String FIND_BY_BALANCE_AFTER_QUERY = """
+            SELECT * FROM microservices.bank_accounts
+            WHERE balance BETWEEN :min AND :max AND (balance, bank_account_id) > (:balance, :id)
+            ORDER BY balance, bank_account_id
+            LIMIT :limit""";
+
+    @Override
+    @NewSpan
+    public Mono<Page<BankAccount>> findAllBankAccountsByBalance(BigDecimal min, BigDecimal max, Pageable pageable) {
+        return findAllBankAccountsByBalance(min, max, pageable, countBankAccountsByBalance(min, max));
+    }
 
     @Override
     @NewSpan
-    public Mono<Page<BankAccount>> findAllBankAccountsByBalance(@SpanTag(key = "min") BigDecimal min,
-                                                                @SpanTag(key = "max") BigDecimal max,
-                                                                @SpanTag(key = "pageable") Pageable pageable) {
+    public Mono<Page<BankAccount>> findAllBankAccountsByBalance(BigDecimal min,
+                                                                BigDecimal max,
+                                                                Pageable pageable,
+                                                                Mono<Long> totalCount) {
+
+        var listMono = findByBalance("findByBalancePage", min, max, pageable).collectList()
+                .doOnError(spanTagger::error)
+                .doOnSuccess(list -> spanTagger.tag("list", list.size()));
+
+        return Mono.zip(listMono, totalCount).map(tuple -> new PageImpl<>(tuple.getT1(), pageable, tuple.getT2()));
+    }
+
+    @Override
+    public Flux<BankAccount> findBankAccountByBalanceBetween(BigDecimal min, BigDecimal max, Pageable pageable) {
+        return findByBalance("findByBalanceBetween", min, max, pageable);
+    }
+
+    private Flux<BankAccount> findByBalance(String query, BigDecimal min, BigDecimal max, Pageable pageable) {
+        if (pageable.isUnpaged() || pageable.getSort().isSorted()) {
+            var selected = template.select(Query.query(Criteria.where(BALANCE).between(min, max)).with(pageable), BankAccount.class);
+            return queryMetrics.timed(query, FIND_BY_BALANCE_TEMPLATE_BINDS, selected);
+        }
 
-        var query = Query.query(Criteria.where(BALANCE).between(min, max)).with(pageable);
+        var page = databaseClient.sql(FIND_BY_BALANCE_PAGE_QUERY)
+                .bind("min", min)
+                .bind("max", max)
+                .bind("limit", pageable.getPageSize())
+                .bind("offset", pageable.getOffset())
+                .map((row, metadata) -> template.getConverter().read(BankAccount.class, row, metadata))
+                .all();
 
-        var listMono = template.select(query, BankAccount.class).collectList()
-                .doOnError(this::spanError)
-                .doOnSuccess(list -> spanTag("list", String.valueOf(list.size())));
+        return queryMetrics.timed(query, FIND_BY_BALANCE_PAGE_BINDS, page);
+    }
 
-        var totalCountMono = databaseClient.sql("SELECT count(bank_account_id) as total FROM microservices.bank_accounts WHERE balance BETWEEN :min AND :max")
+    @Override
+    @NewSpan
+    public Mono<Long> countBankAccountsByBalance(BigDecimal min, BigDecimal max) {
+        var count = databaseClient.sql("SELECT count(bank_account_id) as total FROM microservices.bank_accounts WHERE balance BETWEEN :min AND :max")
                 .bind("min", min)
                 .bind("max", max)
-                .fetch()
+                .map(row -> row.get("total", Long.class))
+                .one();
+
+        return queryMetrics.timed("countByBalance", 2, count)
+                .doOnError(spanTagger::error)
+                .doOnSuccess(totalCount -> spanTagger.tag("totalCount", totalCount));
+    }
+
+    @Override
+    @NewSpan
+    public Mono<Long> estimateBankAccountsByBalance(BigDecimal min, BigDecimal max) {
+        var explain = databaseClient.sql("EXPLAIN SELECT bank_account_id FROM microservices.bank_accounts WHERE balance BETWEEN :min AND :max")
+                .bind("min", min)
+                .bind("max", max)
+                .map(row -> row.get(0, String.class))
+                .first();
+
+        return queryMetrics.timed("estimateByBalance", 2, explain)
+                .map(plan -> {
+                    var matcher = PLAN_ROWS_PATTERN.matcher(plan);
+                    if (!matcher.find()) throw new IllegalStateException(String.format("unexpected query plan: %s", plan));
+                    return Long.parseLong(matcher.group(1));
+                })
+                .doOnError(spanTagger::error)
+                .doOnSuccess(estimate -> spanTagger.tag("estimatedCount", estimate));
+    }
+
+    @Override
+    @NewSpan
+    public Mono<BankAccount> updateBalance(UUID id, BigDecimal amount) {
+        var update = databaseClient.sql(UPDATE_BALANCE_QUERY)
+                .bind("id", id)
+                .bind("amount", amount)
+                .bind("lowest", amount.min(BigDecimal.ZERO))
+                .bind("eventType", AccountEventType.ofAmount(amount).name())
+                .map((row, metadata) -> template.getConverter().read(BankAccount.class, row, metadata))
+                .one();
+
+        return queryMetrics.timed("updateBalance", 4, update)
+                .doOnError(spanTagger::error)
+                .doOnSuccess(bankAccount -> {
+                    spanTagger.tag("id", id);
+                    spanTagger.tag("updated", bankAccount != null);
+                });
+    }
+
+    @Override
+    @NewSpan
+    public Mono<BankAccount> updateBalance(UUID id, List<BigDecimal> amounts) {
+        var update = databaseClient.sql(UPDATE_BALANCE_MERGED_QUERY)
+                .bind("id", id)
+                .bind("amount", amounts.stream().reduce(BigDecimal.ZERO, BigDecimal::add))
+                .bind("lowest", lowestRunningTotal(amounts))
+                .bind("amounts", amounts.toArray(BigDecimal[]::new))
+                .map((row, metadata) -> template.getConverter().read(BankAccount.class, row, metadata))
+                .one();
+
+        return queryMetrics.timed("updateBalanceMerged", 4, update)
+                .doOnError(spanTagger::error)
+                .doOnSuccess(bankAccount -> {
+                    spanTagger.tag("id", id);
+                    spanTagger.tag("mergedUpdates", amounts.size());
+                    spanTagger.tag("updated", bankAccount != null);
+                });
+    }
+
+    /**
+     * The lowest running total of the amounts applied in order and never above zero, the merged update is allowed
+     * when balance + lowest is not negative, so no single amount would have overdrawn the account.
+     */
+    static BigDecimal lowestRunningTotal(List<BigDecimal> amounts) {
+        var total = BigDecimal.ZERO;
+        var lowest = BigDecimal.ZERO;
+        for (var amount : amounts) {
+            total = total.add(amount);
+            lowest = lowest.min(total);
+        }
+        return lowest;
+    }
+
+    @Override
+    @NewSpan
+    public Mono<BankAccount> updateBalance(UUID id, BigDecimal amount, String idempotencyKey) {
+        var update = databaseClient.sql(UPDATE_BALANCE_IDEMPOTENT_QUERY)
+                .bind("id", id)
+                .bind("amount", amount)
+                .bind("lowest", amount.min(BigDecimal.ZERO))
+                .bind("key", idempotencyKey)
+                .bind("eventType", AccountEventType.ofAmount(amount).name())
+                .map((row, metadata) -> template.getConverter().read(BankAccount.class, row, metadata))
+                .one();
+
+        return queryMetrics.timed("updateBalanceIdempotent", 5, update)
+                .doOnError(spanTagger::error)
+                .doOnSuccess(bankAccount -> {
+                    spanTagger.tag("id", id);
+                    spanTagger.tag("updated", bankAccount != null);
+                });
+    }
+
+    @Override
+    public Mono<Boolean> claimIdempotencyKey(String idempotencyKey, UUID id, BigDecimal amount) {
+        var claim = databaseClient.sql(CLAIM_IDEMPOTENCY_KEY_QUERY)
+                .bind("key", idempotencyKey)
+                .bind("id", id)
+                .bind("amount", amount)
+                .map(row -> true)
                 .one()
-                .doOnError(this::spanError)
-                .doOnSuccess(totalCount -> spanTag("totalCount", totalCount.toString()));
+                .defaultIfEmpty(false);
+
+        return queryMetrics.timed("claimIdempotencyKey", 3, claim);
+    }
+
+    @Override
+    public Mono<IdempotencyRecord> findIdempotencyRecord(String idempotencyKey) {
+        var record = databaseClient.sql(FIND_IDEMPOTENCY_RECORD_QUERY)
+                .bind("key", idempotencyKey)
+                .map(row -> new IdempotencyRecord(
+                        row.get("idempotency_key", String.class),
+                        row.get("bank_account_id", UUID.class),
+                        row.get("amount", BigDecimal.class),
+                        row.get("balance", BigDecimal.class),
+                        row.get("updated_at", LocalDateTime.class)))
+                .one();
+
+        return queryMetrics.timed("findIdempotencyRecord", 1, record);
+    }
+
+    @Override
+    public Mono<Long> deleteIdempotencyRecordsBefore(Instant createdBefore) {
+        var deleted = databaseClient.sql(DELETE_IDEMPOTENCY_RECORDS_QUERY)
+                .bind("createdBefore", createdBefore)
+                .fetch()
+                .rowsUpdated()
+                .map(Integer::longValue);
+
+        return queryMetrics.timed("deleteIdempotencyRecords", 1, deleted);
+    }
+
+    @Override
+    @NewSpan
+    public Flux<BankAccount> insertAll(List<BankAccount> bankAccounts) {
+        if (bankAccounts.isEmpty()) return Flux.empty();
+
+        var inserted = databaseClient.sql(INSERT_ALL_QUERY)
+                .bind("firstNames", bankAccounts.stream().map(BankAccount::getFirstName).toArray(String[]::new))
+                .bind("lastNames", bankAccounts.stream().map(BankAccount::getLastName).toArray(String[]::new))
+                .bind("emails", bankAccounts.stream().map(BankAccount::getEmail).toArray(String[]::new))
+                .bind("addresses", bankAccounts.stream().map(BankAccount::getAddress).toArray(String[]::new))
+                .bind("phones", bankAccounts.stream().map(BankAccount::getPhone).toArray(String[]::new))
+                .bind("balances", bankAccounts.stream().map(BankAccount::getBalance).toArray(BigDecimal[]::new))
+                .bind("currencies", bankAccounts.stream().map(bankAccount -> bankAccount.getCurrency().name()).toArray(String[]::new))
+                .bind("createdAts", bankAccounts.stream().map(BankAccount::getCreatedAt).toArray(LocalDateTime[]::new))
+                .bind("updatedAts", bankAccounts.stream().map(BankAccount::getUpdatedAt).toArray(LocalDateTime[]::new))
+                .map((row, metadata) -> template.getConverter().read(BankAccount.class, row, metadata))
+                .all();
 
-        return Mono.zip(listMono, totalCountMono).map(tuple -> new PageImpl<>(tuple.getT1(), pageable, (Long) tuple.getT2().get("total")));
+        return queryMetrics.timed("insertAll", INSERT_ALL_BINDS, inserted)
+                .doOnError(spanTagger::error)
+                .doOnComplete(() -> spanTagger.tag("batchSize", bankAccounts.size()));
     }
 
+    @Override
+    @NewSpan
+    public Flux<BankAccount> findAllByIds(Collection<UUID> ids) {
+        if (ids.isEmpty()) return Flux.empty();
+        var found = databaseClient.sql(FIND_ALL_BY_IDS_QUERY)
+                .bind("ids", ids.toArray(UUID[]::new))
+                .map((row, metadata) -> template.getConverter().read(BankAccount.class, row, metadata))
+                .all();
 
-    private void spanTag(String key, String value) {
-        Optional.ofNullable(tracer.currentSpan()).ifPresent(span -> span.tag(key, value));
+        // the ids are bound as one array
+        return queryMetrics.timed("findAllByIds", 1, found)
+                .doOnError(spanTagger::error)
+                .doOnComplete(() -> spanTagger.tag("ids", ids.size()));
     }
 
-    private void spanError(Throwable ex) {
-        Optional.ofNullable(tracer.currentSpan()).ifPresent(span -> span.error(ex));
+    @Override
+    @NewSpan
+    public Flux<BankAccount> findBankAccountsByBalanceAfter(BigDecimal min, BigDecimal max, BalanceCursor cursor, int limit) {
+        var spec = cursor == null
+                ? databaseClient.sql(FIND_BY_BALANCE_FIRST_QUERY)
+                : databaseClient.sql(FIND_BY_BALANCE_AFTER_QUERY).bind("balance", cursor.balance()).bind("id", cursor.id());
+
+        var found = spec.bind("min", min)
+                .bind("max", max)
+                .bind("limit", limit)
+                .map((row, metadata) -> template.getConverter().read(BankAccount.class, row, metadata))
+                .all();
+
+        return queryMetrics.timed(cursor == null ? "findByBalanceFirst" : "findByBalanceAfter", cursor == null ? 3 : 5, found)
+                .doOnError(spanTagger::error);
     }
+
 }
@@ -0,0 +1,132 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.services;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.AccountEvent;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.repositories.AccountEventRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Drains the account event outbox. Every poll publishes pending events in batches, then reads the events published
+ * since the last poll, by this or any other instance, once for all subscribers and multicasts them.
+ * A subscriber starting from an offset reads the older events from the table first and then continues with the live
+ * events, each subscriber buffers at most subscriber-buffer-size events and fails when it falls further behind,
+ * it can resume from the last offset it received.
+ */
+@Slf4j
+@Component
+public class AccountEventRelay implements DisposableBean {
+
+    private final AccountEventRepository accountEventRepository;
+    private final int batchSize;
+    private final int subscriberBufferSize;
+    private final Duration pollInterval;
+    private final Duration retention;
+    private final Duration purgeInterval;
+    private final Sinks.Many<AccountEvent> events = Sinks.many().multicast().directBestEffort();
+    private final Disposable.Composite subscriptions = Disposables.composite();
+
+    private long lastOffset;
+
+    public AccountEventRelay(AccountEventRepository accountEventRepository,
+                             @Value(value = "${bank-account.outbox.poll-interval:100ms}") Duration pollInterval,
+                             @Value(value = "${bank-account.outbox.batch-size:500}") int batchSize,
+                             @Value(value = "${bank-account.outbox.subscriber-buffer-size:10000}") int subscriberBufferSize,
+                             @Value(value = "${bank-account.outbox.retention:7d}") Duration retention,
+                             @Value(value = "${bank-account.outbox.purge-interval:1h}") Duration purgeInterval) {
+        this.accountEventRepository = accountEventRepository;
+        this.batchSize = batchSize;
+        this.subscriberBufferSize = subscriberBufferSize;
+        this.pollInterval = pollInterval;
+        this.retention = retention;
+        this.purgeInterval = purgeInterval;
+    }
+
+    /**
+     * Polling starts once the application is ready, after the outbox table has been migrated.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        subscriptions.add(accountEventRepository.findLastOffset()
+                .doOnNext(offset -> lastOffset = offset)
+                .thenMany(Flux.interval(pollInterval).onBackpressureDrop())
+                .concatMap(tick -> publishPending().then(relayPublished())
+                        .onErrorResume(ex -> {
+                            log.warn("cannot relay account events: {}", ex.getLocalizedMessage());
+                            return Mono.empty();
+                        }))
+                .subscribe());
+
+        subscriptions.add(Flux.interval(purgeInterval, purgeInterval)
+                .concatMap(tick -> accountEventRepository.deletePublishedBefore(Instant.now().minus(retention))
+                        .doOnNext(deleted -> log.debug("purged account events: {}", deleted))
+                        .onErrorResume(ex -> {
+                            log.warn("cannot purge account events: {}", ex.getLocalizedMessage());
+                            return Mono.empty();
+                        }))
+                .subscribe());
+    }
+
+    /**
+     * @param offset the last offset the subscriber received, 0 for every retained event, negative for new events only
+     */
+    public Flux<AccountEvent> subscribe(long offset) {
+        return Flux.defer(() -> {
+            var live = events.asFlux().onBackpressureBuffer(subscriberBufferSize);
+            if (offset < 0) return live;
+
+            // live events are buffered from the start, those already read from the table are skipped
+            var delivered = new long[]{offset};
+            return Flux.mergeSequential(history(offset), live)
+                    .filter(event -> {
+                        if (event.offset() <= delivered[0]) return false;
+                        delivered[0] = event.offset();
+                        return true;
+                    });
+        });
+    }
+
+    private Flux<AccountEvent> history(long offset) {
+        return historyPage(offset)
+                .expand(page -> page.size() < batchSize ? Mono.empty() : historyPage(page.get(page.size() - 1).offset()))
+                .concatMapIterable(Function.identity());
+    }
+
+    private Mono<List<AccountEvent>> historyPage(long offset) {
+        return accountEventRepository.findPublishedAfter(offset, batchSize).collectList();
+    }
+
+    private Mono<Void> publishPending() {
+        return accountEventRepository.publishPending(batchSize)
+                .flatMap(published -> published < batchSize ? Mono.empty() : publishPending());
+    }
+
+    private Mono<Void> relayPublished() {
+        return historyPage(lastOffset)
+                .flatMap(page -> {
+                    for (var event : page) {
+                        events.tryEmitNext(event);
+                        lastOffset = event.offset();
+                    }
+                    return page.size() < batchSize ? Mono.empty() : relayPublished();
+                });
+    }
+
+    @Override
+    public void destroy() {
+        subscriptions.dispose();
+    }
+}
@@ -0,0 +1,74 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.services;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BalanceHistogram;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.repositories.BalanceHistogramRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Keeps the balance histogram in memory. Every refresh folds the pending deltas into the bucket totals and reads
+ * them again, so range stats lag the committed writes of every instance by at most refresh-interval.
+ * Until the first refresh completes the histogram is read from the table on demand.
+ */
+@Slf4j
+@Component
+public class BalanceHistogramMirror implements DisposableBean {
+
+    private final BalanceHistogramRepository balanceHistogramRepository;
+    private final Duration refreshInterval;
+    private final int foldBatchSize;
+    private final Disposable.Composite subscriptions = Disposables.composite();
+
+    private volatile BalanceHistogram histogram;
+
+    public BalanceHistogramMirror(BalanceHistogramRepository balanceHistogramRepository,
+                                  @Value(value = "${bank-account.balance-histogram.refresh-interval:1s}") Duration refreshInterval,
+                                  @Value(value = "${bank-account.balance-histogram.fold-batch-size:10000}") int foldBatchSize) {
+        this.balanceHistogramRepository = balanceHistogramRepository;
+        this.refreshInterval = refreshInterval;
+        this.foldBatchSize = foldBatchSize;
+    }
+
+    /**
+     * Refreshing starts once the application is ready, after the histogram tables have been migrated.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        subscriptions.add(Flux.interval(Duration.ZERO, refreshInterval)
+                .onBackpressureDrop()
+                .concatMap(tick -> foldDeltas().then(balanceHistogramRepository.find())
+                        .doOnNext(refreshed -> histogram = refreshed)
+                        .onErrorResume(ex -> {
+                            log.warn("cannot refresh balance histogram: {}", ex.getLocalizedMessage());
+                            return Mono.empty();
+                        }))
+                .subscribe());
+    }
+
+    public Mono<BalanceHistogram> current() {
+        return Mono.defer(() -> {
+            var current = histogram;
+            return current != null ? Mono.just(current) : balanceHistogramRepository.find();
+        });
+    }
+
+    private Mono<Void> foldDeltas() {
+        return balanceHistogramRepository.foldDeltas(foldBatchSize)
+                .flatMap(folded -> folded < foldBatchSize ? Mono.empty() : foldDeltas());
+    }
+
+    @Override
+    public void destroy() {
+        subscriptions.dispose();
+    }
+}
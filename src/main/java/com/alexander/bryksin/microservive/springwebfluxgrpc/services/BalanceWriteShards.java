@@ -0,0 +1,123 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.services;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.repositories.BankAccountRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Serializes balance updates per account in memory. Account ids are hashed onto a fixed set of lanes, each lane
+ * drains its pending updates in windows and merges the updates of one account into a single net UPDATE,
+ * which still appends one account event per update.
+ * Every caller still gets the balance right after its own update, or an empty result when its update would
+ * have overdrawn the account.
+ */
+@Slf4j
+@Component
+public class BalanceWriteShards implements DisposableBean {
+
+    private final BankAccountRepository bankAccountRepository;
+    private final boolean enabled;
+    private final List<Sinks.Many<PendingUpdate>> lanes;
+    private final Disposable.Composite subscriptions = Disposables.composite();
+
+    public BalanceWriteShards(BankAccountRepository bankAccountRepository,
+                              @Value(value = "${bank-account.write-sharding.enabled:false}") boolean enabled,
+                              @Value(value = "${bank-account.write-sharding.lanes:16}") int laneCount,
+                              @Value(value = "${bank-account.write-sharding.window:5ms}") Duration window,
+                              @Value(value = "${bank-account.write-sharding.max-batch-size:256}") int maxBatchSize) {
+        this.bankAccountRepository = bankAccountRepository;
+        this.enabled = enabled;
+        this.lanes = new ArrayList<>(laneCount);
+        if (!enabled) return;
+
+        for (int i = 0; i < laneCount; i++) {
+            Sinks.Many<PendingUpdate> lane = Sinks.many().unicast().onBackpressureBuffer();
+            lanes.add(lane);
+            subscriptions.add(lane.asFlux()
+                    .bufferTimeout(maxBatchSize, window)
+                    // bufferTimeout fails with an overflow when the window closes while the previous batch is still applied
+                    .onBackpressureBuffer()
+                    .concatMap(this::applyBatch)
+                    .subscribe());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Mono<BankAccount> submit(UUID id, BigDecimal amount) {
+        return Mono.defer(() -> {
+            var result = Sinks.<BankAccount>one();
+            var lane = lanes.get(Math.floorMod(id.hashCode(), lanes.size()));
+            synchronized (lane) {
+                lane.emitNext(new PendingUpdate(id, amount, result), Sinks.EmitFailureHandler.FAIL_FAST);
+            }
+            return result.asMono();
+        });
+    }
+
+    private Mono<Void> applyBatch(List<PendingUpdate> batch) {
+        var updatesByAccount = new LinkedHashMap<UUID, List<PendingUpdate>>();
+        batch.forEach(update -> updatesByAccount.computeIfAbsent(update.id(), id -> new ArrayList<>()).add(update));
+        return Flux.fromIterable(updatesByAccount.values())
+                .flatMap(this::applyAccountUpdates)
+                .then();
+    }
+
+    private Mono<Void> applyAccountUpdates(List<PendingUpdate> updates) {
+        var id = updates.get(0).id();
+        var amounts = updates.stream().map(PendingUpdate::amount).toList();
+        var total = amounts.stream().reduce(BigDecimal.ZERO, BigDecimal::add);
+        return bankAccountRepository.updateBalance(id, amounts)
+                .doOnNext(bankAccount -> {
+                    var balance = bankAccount.getBalance().subtract(total);
+                    for (var update : updates) {
+                        balance = balance.add(update.amount());
+                        update.result().tryEmitValue(bankAccount.toBuilder().balance(balance).build());
+                    }
+                })
+                .switchIfEmpty(Mono.defer(() -> applyOneByOne(updates)))
+                .doOnError(ex -> updates.forEach(update -> update.result().tryEmitError(ex)))
+                .onErrorResume(ex -> Mono.empty())
+                .then();
+    }
+
+    private Mono<BankAccount> applyOneByOne(List<PendingUpdate> updates) {
+        if (updates.size() == 1) {
+            updates.get(0).result().tryEmitEmpty();
+            return Mono.empty();
+        }
+        log.debug("(BalanceWriteShards) merged update of {} operations rejected, applying one by one", updates.size());
+        return Flux.fromIterable(updates)
+                .concatMap(update -> bankAccountRepository.updateBalance(update.id(), update.amount())
+                        .doOnNext(bankAccount -> update.result().tryEmitValue(bankAccount))
+                        .switchIfEmpty(Mono.fromRunnable(() -> update.result().tryEmitEmpty()))
+                        .doOnError(ex -> update.result().tryEmitError(ex))
+                        .onErrorResume(ex -> Mono.empty()))
+                .then(Mono.empty());
+    }
+
+    @Override
+    public void destroy() {
+        subscriptions.dispose();
+    }
+
+    private record PendingUpdate(UUID id, BigDecimal amount, Sinks.One<BankAccount> result) {
+    }
+}
@@ -1,25 +1,63 @@
 package com.alexander.bryksin.microservive.springwebfluxgrpc.services;
 
 
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.AccountEvent;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BalanceChange;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BalanceStats;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.CursorPage;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.FindByBalanceCursorRequestDto;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.FindByBalanceRequestDto;
 import org.springframework.data.domain.Page;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 public interface BankAccountService {
     Mono<BankAccount> createBankAccount(BankAccount bankAccount);
 
+    Flux<BankAccount> createBankAccounts(List<BankAccount> bankAccounts);
+
     Mono<BankAccount> getBankAccountById(UUID id);
 
+    Flux<BankAccount> getBankAccountsByIds(Collection<UUID> ids);
+
     Mono<BankAccount> depositAmount(UUID id, BigDecimal amount);
 
     Mono<BankAccount> withdrawAmount(UUID id, BigDecimal amount);
 
+    /**
+     * Applies the deposit once per idempotency key, a retry with the same key returns the balance of the first call.
+     */
+    Mono<BankAccount> depositAmount(UUID id, BigDecimal amount, String idempotencyKey);
+
+    Mono<BankAccount> withdrawAmount(UUID id, BigDecimal amount, String idempotencyKey);
+
     Flux<BankAccount> findBankAccountByBalanceBetween(FindByBalanceRequestDto request);
 
     Mono<Page<BankAccount>> findAllBankAccountsByBalance(FindByBalanceRequestDto request);
+
+    Mono<CursorPage<BankAccount>> findBankAccountsByBalanceAfter(FindByBalanceCursorRequestDto request);
+
+    Flux<BankAccount> exportBankAccountsByBalance(BigDecimal min, BigDecimal max);
+
+    Flux<List<BankAccount>> exportBankAccountChunksByBalance(BigDecimal min, BigDecimal max);
+
+    Flux<AccountEvent> subscribeAccountChanges(long offset);
+
+    Flux<BalanceChange> subscribeBalanceChanges(Set<UUID> ids);
+
+    /**
+     * Accounts, balance total and quantiles of the range from the in memory balance histogram, without a table scan.
+     *
+     * @param min       null for no lower bound
+     * @param max       null for no upper bound
+     * @param quantiles empty for 0.5, 0.9 and 0.99
+     */
+    Mono<BalanceStats> getBalanceStats(BigDecimal min, BigDecimal max, List<Double> quantiles);
 }
@@ -1,23 +1,45 @@
 package com.alexander.bryksin.microservive.springwebfluxgrpc.services;
 
+import com.alexander.bryksin.microservive.springwebfluxgrpc.cache.BalanceRangeCountCache;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.cache.BankAccountCache;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.cache.IdempotencyKeyCache;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.AccountEvent;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BalanceChange;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BalanceStats;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.IdempotencyRecord;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.BalanceCursor;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.CountStrategy;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.CursorPage;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.FindByBalanceCursorRequestDto;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.FindByBalanceRequestDto;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.exceptions.BankAccountNotFoundException;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.exceptions.InvalidAmountException;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.loaders.BankAccountBatchLoader;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.notifications.BalanceChangeNotifier;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.replica.ReadOnlyRouting;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.repositories.AccountEventRepository;
 import com.alexander.bryksin.microservive.springwebfluxgrpc.repositories.BankAccountRepository;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.tracing.SpanTagger;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.sleuth.annotation.NewSpan;
-import org.springframework.cloud.sleuth.annotation.SpanTag;
 import org.springframework.data.domain.Page;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.reactive.TransactionalOperator;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Function;
 
 
 @Service
@@ -25,74 +47,297 @@ import java.util.UUID;
 @RequiredArgsConstructor
 public class BankAccountServiceImpl implements BankAccountService {
 
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 128;
+    private static final double[] DEFAULT_QUANTILES = {0.5, 0.9, 0.99};
+    private static final int MAX_QUANTILES = 32;
+
     private final BankAccountRepository bankAccountRepository;
-    private final Tracer tracer;
+    private final SpanTagger spanTagger;
+    private final BalanceRangeCountCache balanceRangeCountCache;
+    private final BankAccountCache bankAccountCache;
+    private final BankAccountBatchLoader bankAccountBatchLoader;
+    private final BalanceWriteShards balanceWriteShards;
+    private final IdempotencyKeyCache idempotencyKeyCache;
+    private final TransactionalOperator transactionalOperator;
+    private final AccountEventRepository accountEventRepository;
+    private final AccountEventRelay accountEventRelay;
+    private final BalanceChangeNotifier balanceChangeNotifier;
+    private final BalanceHistogramMirror balanceHistogramMirror;
+
+    @Value(value = "${bank-account.count.strategy:EXACT}")
+    private CountStrategy defaultCountStrategy = CountStrategy.EXACT;
+
+    @Value(value = "${bank-account.batch-get.max-ids:500}")
+    private Integer maxIdsPerCall = 500;
+
+    @Value(value = "${bank-account.cursor.max-size:1000}")
+    private Integer maxCursorPageSize = 1000;
+
+    @Value(value = "${bank-account.export.chunk-size:1000}")
+    private Integer exportChunkSize = 1000;
+
+    @Value(value = "${bank-account.export.chunk-timeout:5s}")
+    private Duration exportChunkTimeout = Duration.ofSeconds(5);
 
     @Override
-    @Transactional
     @NewSpan
-    public Mono<BankAccount> createBankAccount(@SpanTag(key = "bankAccount") BankAccount bankAccount) {
-        return bankAccountRepository.save(bankAccount)
-                .doOnSuccess(savedBankAccount -> spanTag("savedBankAccount", savedBankAccount.toString()))
-                .doOnError(this::spanError);
+    public Mono<BankAccount> createBankAccount(BankAccount bankAccount) {
+        return transactionalOperator.transactional(bankAccountRepository.save(bankAccount)
+                        .flatMap(savedBankAccount -> accountEventRepository.appendCreated(savedBankAccount).thenReturn(savedBankAccount)))
+                .doOnSuccess(savedBankAccount -> spanTagger.tag("id", savedBankAccount.getId()))
+                .doOnNext(savedBankAccount -> balanceRangeCountCache.onBalanceChanged(null, savedBankAccount.getBalance()))
+                .doOnError(spanTagger::error);
     }
 
     @Override
-    @Transactional(readOnly = true)
     @NewSpan
-    public Mono<BankAccount> getBankAccountById(@SpanTag(key = "id") UUID id) {
-        return bankAccountRepository.findById(id)
-                .doOnEach(v -> spanTag("id", id.toString()))
-                .switchIfEmpty(Mono.error(new BankAccountNotFoundException(id.toString())))
-                .doOnError(this::spanError);
+    public Flux<BankAccount> createBankAccounts(List<BankAccount> bankAccounts) {
+        // rows are collected so the cached counts are adjusted only after the whole batch has committed
+        return transactionalOperator.transactional(bankAccountRepository.insertAll(bankAccounts).collectList())
+                .flatMapIterable(savedBankAccounts -> savedBankAccounts)
+                .doOnNext(savedBankAccount -> balanceRangeCountCache.onBalanceChanged(null, savedBankAccount.getBalance()))
+                .doOnComplete(() -> spanTagger.tag("batchSize", bankAccounts.size()))
+                .doOnError(spanTagger::error);
     }
 
     @Override
-    @Transactional
+    // no transaction: the caller would pin a pooled connection while waiting for the shared batch query
     @NewSpan
-    public Mono<BankAccount> depositAmount(@SpanTag(key = "id") UUID id, @SpanTag(key = "amount") BigDecimal amount) {
-        return bankAccountRepository.findById(id)
+    public Mono<BankAccount> getBankAccountById(UUID id) {
+        return bankAccountCache.get(id, bankAccountBatchLoader::load)
                 .switchIfEmpty(Mono.error(new BankAccountNotFoundException(id.toString())))
-                .flatMap(bankAccount -> bankAccountRepository.save(bankAccount.depositBalance(amount)))
-                .doOnError(this::spanError)
-                .doOnNext(bankAccount -> spanTag("bankAccount", bankAccount.toString()))
-                .doOnSuccess(bankAccount -> log.info("updated bank account: {}", bankAccount));
+                .doOnTerminate(() -> spanTagger.tag("id", id))
+                .doOnError(spanTagger::error);
     }
 
     @Override
-    @Transactional
     @NewSpan
-    public Mono<BankAccount> withdrawAmount(@SpanTag(key = "id") UUID id, @SpanTag(key = "amount") BigDecimal amount) {
-        return bankAccountRepository.findById(id)
-                .switchIfEmpty(Mono.error(new BankAccountNotFoundException(id.toString())))
-                .flatMap(bankAccount -> bankAccountRepository.save(bankAccount.withdrawBalance(amount)))
-                .doOnError(this::spanError)
-                .doOnNext(bankAccount -> spanTag("bankAccount", bankAccount.toString()))
-                .doOnSuccess(bankAccount -> log.info("updated bank account: {}", bankAccount));
+    public Flux<BankAccount> getBankAccountsByIds(Collection<UUID> ids) {
+        if (ids.size() > maxIdsPerCall)
+            return Flux.error(new IllegalArgumentException(String.format("too many ids: %s, max allowed per call: %s", ids.size(), maxIdsPerCall)));
+        return bankAccountCache.getAll(ids, bankAccountRepository::findAllByIds)
+                .doOnComplete(() -> spanTagger.tag("ids", ids.size()))
+                .doOnError(spanTagger::error);
+    }
+
+    @Override
+    @NewSpan
+    public Mono<BankAccount> depositAmount(UUID id, BigDecimal amount) {
+        if (amount.compareTo(BigDecimal.ZERO) < 0) return Mono.error(invalidAmount(id, amount));
+        return updateBalance(id, amount, amount)
+                .doOnNext(bankAccount -> balanceRangeCountCache.onBalanceChanged(bankAccount.getBalance().subtract(amount), bankAccount.getBalance()))
+                .doOnNext(bankAccount -> bankAccountCache.invalidate(id))
+                .doOnTerminate(() -> tagBalanceUpdate(id, amount))
+                .doOnError(spanTagger::error)
+                .doOnSuccess(bankAccount -> log.debug("updated bank account: {}, balance: {}", bankAccount.getId(), bankAccount.getBalance()));
+    }
+
+    @Override
+    @NewSpan
+    public Mono<BankAccount> withdrawAmount(UUID id, BigDecimal amount) {
+        if (amount.compareTo(BigDecimal.ZERO) < 0) return Mono.error(invalidAmount(id, amount));
+        return updateBalance(id, amount.negate(), amount)
+                .doOnNext(bankAccount -> balanceRangeCountCache.onBalanceChanged(bankAccount.getBalance().add(amount), bankAccount.getBalance()))
+                .doOnNext(bankAccount -> bankAccountCache.invalidate(id))
+                .doOnTerminate(() -> tagBalanceUpdate(id, amount))
+                .doOnError(spanTagger::error)
+                .doOnSuccess(bankAccount -> log.debug("updated bank account: {}, balance: {}", bankAccount.getId(), bankAccount.getBalance()));
+    }
+
+    @Override
+    @NewSpan
+    public Mono<BankAccount> depositAmount(UUID id, BigDecimal amount, String idempotencyKey) {
+        if (amount.compareTo(BigDecimal.ZERO) < 0) return Mono.error(invalidAmount(id, amount));
+        return updateBalanceOnce(id, amount, idempotencyKey)
+                .doOnTerminate(() -> tagBalanceUpdate(id, amount))
+                .doOnError(spanTagger::error);
+    }
+
+    @Override
+    @NewSpan
+    public Mono<BankAccount> withdrawAmount(UUID id, BigDecimal amount, String idempotencyKey) {
+        if (amount.compareTo(BigDecimal.ZERO) < 0) return Mono.error(invalidAmount(id, amount));
+        return updateBalanceOnce(id, amount.negate(), idempotencyKey)
+                .doOnTerminate(() -> tagBalanceUpdate(id, amount))
+                .doOnError(spanTagger::error);
     }
 
     @Override
     @Transactional(readOnly = true)
     @NewSpan
-    public Flux<BankAccount> findBankAccountByBalanceBetween(@SpanTag(key = "request") FindByBalanceRequestDto request) {
+    public Flux<BankAccount> findBankAccountByBalanceBetween(FindByBalanceRequestDto request) {
         return bankAccountRepository.findBankAccountByBalanceBetween(request.min(), request.max(), request.pageable())
-                .doOnError(this::spanError);
+                .doOnComplete(() -> tagRange(request.min(), request.max()))
+                .doOnError(spanTagger::error);
     }
 
     @Override
     @Transactional(readOnly = true)
     @NewSpan
-    public Mono<Page<BankAccount>> findAllBankAccountsByBalance(@SpanTag(key = "request") FindByBalanceRequestDto request) {
-        return bankAccountRepository.findAllBankAccountsByBalance(request.min(), request.max(), request.pageable())
-                .doOnError(this::spanError)
-                .doOnSuccess(result -> log.info("result: {}", result.toString()));
+    public Mono<Page<BankAccount>> findAllBankAccountsByBalance(FindByBalanceRequestDto request) {
+        return bankAccountRepository.findAllBankAccountsByBalance(request.min(), request.max(), request.pageable(), totalCount(request))
+                .doOnTerminate(() -> tagRange(request.min(), request.max()))
+                .doOnError(spanTagger::error)
+                .doOnSuccess(result -> log.debug("found: {}, total: {}", result.getNumberOfElements(), result.getTotalElements()));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    @NewSpan
+    public Mono<CursorPage<BankAccount>> findBankAccountsByBalanceAfter(FindByBalanceCursorRequestDto request) {
+        if (request.size() > maxCursorPageSize)
+            return Mono.error(new IllegalArgumentException(String.format("page size: %s, max allowed: %s", request.size(), maxCursorPageSize)));
+        return bankAccountRepository.findBankAccountsByBalanceAfter(request.min(), request.max(), request.cursor(), request.size() + 1)
+                .collectList()
+                .map(bankAccounts -> {
+                    var hasNext = bankAccounts.size() > request.size();
+                    var content = hasNext ? bankAccounts.subList(0, request.size()) : bankAccounts;
+                    var nextCursor = hasNext ? BalanceCursor.of(content.get(content.size() - 1)).toToken() : "";
+                    return new CursorPage<>(content, request.size(), nextCursor, hasNext);
+                })
+                .doOnTerminate(() -> tagRange(request.min(), request.max()))
+                .doOnError(spanTagger::error);
+    }
+
+    @Override
+    @NewSpan
+    public Flux<BankAccount> exportBankAccountsByBalance(BigDecimal min, BigDecimal max) {
+        return exportBankAccountChunksByBalance(min, max)
+                .concatMapIterable(Function.identity(), 1)
+                .doOnComplete(() -> tagRange(min, max))
+                .doOnError(spanTagger::error);
+    }
+
+    /**
+     * Walks the whole range in keyset order one chunk at a time, the next chunk is fetched only after the
+     * subscriber has requested it, so at most two chunks are held in memory whatever the range size.
+     * Each chunk query has its own timeout instead of one for the whole export, and no transaction is kept open.
+     */
+    @Override
+    public Flux<List<BankAccount>> exportBankAccountChunksByBalance(BigDecimal min, BigDecimal max) {
+        return exportChunk(min, max, null)
+                .expand(chunk -> chunk.size() < exportChunkSize ? Mono.empty() : exportChunk(min, max, BalanceCursor.of(chunk.get(chunk.size() - 1))));
+    }
+
+    @Override
+    public Flux<AccountEvent> subscribeAccountChanges(long offset) {
+        return accountEventRelay.subscribe(offset);
+    }
+
+    @Override
+    public Flux<BalanceChange> subscribeBalanceChanges(Set<UUID> ids) {
+        return balanceChangeNotifier.subscribe(ids);
+    }
+
+    @Override
+    @NewSpan
+    public Mono<BalanceStats> getBalanceStats(BigDecimal min, BigDecimal max, List<Double> quantiles) {
+        if (min != null && max != null && min.compareTo(max) > 0)
+            return Mono.error(new IllegalArgumentException(String.format("min %s is greater than max %s", min, max)));
+        if (quantiles.size() > MAX_QUANTILES)
+            return Mono.error(new IllegalArgumentException(String.format("at most %d quantiles can be requested", MAX_QUANTILES)));
+
+        var requested = quantiles.isEmpty() ? DEFAULT_QUANTILES : quantiles.stream().mapToDouble(Double::doubleValue).toArray();
+        return balanceHistogramMirror.current()
+                .map(histogram -> histogram.stats(min, max, requested))
+                .doOnTerminate(() -> tagRange(min, max))
+                .doOnError(spanTagger::error)
+                .doOnSuccess(stats -> spanTagger.tag("count", stats.count()));
+    }
+
+    private Mono<List<BankAccount>> exportChunk(BigDecimal min, BigDecimal max, BalanceCursor cursor) {
+        return ReadOnlyRouting.readOnly(bankAccountRepository.findBankAccountsByBalanceAfter(min, max, cursor, exportChunkSize))
+                .collectList()
+                .timeout(exportChunkTimeout);
+    }
+
+    private Mono<Long> totalCount(FindByBalanceRequestDto request) {
+        var countStrategy = Optional.ofNullable(request.countStrategy()).orElse(defaultCountStrategy);
+        var totalCount = switch (countStrategy) {
+            case EXACT -> bankAccountRepository.countBankAccountsByBalance(request.min(), request.max());
+            case CACHED -> balanceRangeCountCache.get(request.min(), request.max(), () -> bankAccountRepository.countBankAccountsByBalance(request.min(), request.max()));
+            case ESTIMATED -> bankAccountRepository.estimateBankAccountsByBalance(request.min(), request.max());
+            case HISTOGRAM -> balanceHistogramMirror.current().map(histogram -> histogram.count(request.min(), request.max()));
+        };
+        return totalCount.doOnTerminate(() -> spanTagger.tag("countStrategy", countStrategy));
+    }
+
+    /**
+     * Sharded updates are applied by the lane on its own connection, a transaction opened here would pin a second
+     * pooled connection per waiting caller and starve the lanes, so only the direct update runs in one.
+     */
+    private Mono<BankAccount> updateBalance(UUID id, BigDecimal amount, BigDecimal requestedAmount) {
+        if (balanceWriteShards.isEnabled()) {
+            return balanceWriteShards.submit(id, amount)
+                    .switchIfEmpty(Mono.defer(() -> updateBalanceFailure(id, requestedAmount)));
+        }
+        return transactionalOperator.transactional(bankAccountRepository.updateBalance(id, amount)
+                .switchIfEmpty(Mono.defer(() -> updateBalanceFailure(id, requestedAmount))));
+    }
+
+    /**
+     * The key is claimed and the balance updated in one transaction, a failed update rolls the claim back.
+     * Retries are answered from the cache or the stored record and never lock the account row again,
+     * they bypass write sharding because the outcome has to be recorded with the key.
+     */
+    private Mono<BankAccount> updateBalanceOnce(UUID id, BigDecimal amount, String idempotencyKey) {
+        if (idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH)
+            return Mono.error(new IllegalArgumentException(String.format("idempotency key is longer than %d characters", MAX_IDEMPOTENCY_KEY_LENGTH)));
+
+        var cached = idempotencyKeyCache.get(idempotencyKey);
+        if (cached != null) return replay(cached, id, amount);
+
+        var update = bankAccountRepository.claimIdempotencyKey(idempotencyKey, id, amount)
+                .flatMap(claimed -> claimed
+                        ? bankAccountRepository.updateBalance(id, amount, idempotencyKey)
+                        .switchIfEmpty(Mono.defer(() -> updateBalanceFailure(id, amount.abs())))
+                        .map(bankAccount -> new KeyedUpdate(bankAccount, new IdempotencyRecord(idempotencyKey, id, amount, bankAccount.getBalance(), bankAccount.getUpdatedAt()), true))
+                        : bankAccountRepository.findIdempotencyRecord(idempotencyKey)
+                        .flatMap(record -> replay(record, id, amount).map(bankAccount -> new KeyedUpdate(bankAccount, record, false))));
+
+        // caches are updated once the transaction has committed, a concurrent read must not cache the old row again
+        return transactionalOperator.transactional(update)
+                .doOnNext(committed -> {
+                    idempotencyKeyCache.put(committed.record());
+                    if (!committed.applied()) return;
+                    var balance = committed.bankAccount().getBalance();
+                    balanceRangeCountCache.onBalanceChanged(balance.subtract(amount), balance);
+                    bankAccountCache.invalidate(id);
+                })
+                .map(KeyedUpdate::bankAccount);
+    }
+
+    private Mono<BankAccount> replay(IdempotencyRecord record, UUID id, BigDecimal amount) {
+        if (!record.matches(id, amount))
+            return Mono.error(new IllegalArgumentException(String.format("idempotency key %s was already used for another balance update", record.key())));
+        spanTagger.tag("idempotentReplay", true);
+        return getBankAccountById(id).map(record::applyTo);
+    }
+
+    private Mono<BankAccount> updateBalanceFailure(UUID id, BigDecimal amount) {
+        return bankAccountRepository.existsById(id)
+                .flatMap(exists -> exists
+                        ? Mono.error(invalidAmount(id, amount))
+                        : Mono.error(new BankAccountNotFoundException(id.toString())));
+    }
+
+    private InvalidAmountException invalidAmount(UUID id, BigDecimal amount) {
+        return new InvalidAmountException(String.format("invalid amount %s for bank account: %s", amount, id));
+    }
+
+    private void tagBalanceUpdate(UUID id, BigDecimal amount) {
+        spanTagger.tag("id", id);
+        spanTagger.tag("amount", amount);
     }
 
-    private void spanTag(String key, String value) {
-        Optional.ofNullable(tracer.currentSpan()).ifPresent(span -> span.tag(key, value));
+    private void tagRange(BigDecimal min, BigDecimal max) {
+        spanTagger.tag("min", min);
+        spanTagger.tag("max", max);
     }
 
-    private void spanError(Throwable ex) {
-        Optional.ofNullable(tracer.currentSpan()).ifPresent(span -> span.error(ex));
+    /**
+     * @param applied false when the key was already used and the stored outcome is replayed
+     */
+    private record KeyedUpdate(BankAccount bankAccount, IdempotencyRecord record, boolean applied) {
     }
 }
@@ -0,0 +1,41 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.services;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.repositories.BankAccountRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Deletes idempotency keys older than bank-account.idempotency.retention, a retry after that is applied as a new update.
+ */
+@Slf4j
+@Component
+public class IdempotencyKeyPurger implements DisposableBean {
+
+    private final Disposable subscription;
+
+    public IdempotencyKeyPurger(BankAccountRepository bankAccountRepository,
+                                @Value(value = "${bank-account.idempotency.retention:24h}") Duration retention,
+                                @Value(value = "${bank-account.idempotency.purge-interval:10m}") Duration purgeInterval) {
+        this.subscription = Flux.interval(purgeInterval, purgeInterval)
+                .concatMap(tick -> bankAccountRepository.deleteIdempotencyRecordsBefore(Instant.now().minus(retention))
+                        .doOnNext(deleted -> log.debug("purged idempotency keys: {}", deleted))
+                        .onErrorResume(ex -> {
+                            log.warn("cannot purge idempotency keys: {}", ex.getLocalizedMessage());
+                            return Mono.empty();
+                        }))
+                .subscribe();
+    }
+
+    @Override
+    public void destroy() {
+        subscription.dispose();
+    }
+}
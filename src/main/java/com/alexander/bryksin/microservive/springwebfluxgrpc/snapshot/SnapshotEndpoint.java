@@ -0,0 +1,29 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.snapshot;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.math.BigDecimal;
+
+/**
+ * POST /actuator/snapshot writes the accounts in a balance range to a new file in bank-account.snapshot.directory,
+ * e.g. {"min": 0, "max": 1000}, both optional, and returns its path and size.
+ */
+@Component
+@Endpoint(id = "snapshot")
+@RequiredArgsConstructor
+public class SnapshotEndpoint {
+
+    private static final BigDecimal MAX_BALANCE = new BigDecimal("99999999999999.99");
+
+    private final SnapshotWriter snapshotWriter;
+
+    @WriteOperation
+    public Mono<SnapshotWriter.SnapshotFile> write(@Nullable BigDecimal min, @Nullable BigDecimal max) {
+        return snapshotWriter.write(min != null ? min : BigDecimal.ZERO, max != null ? max : MAX_BALANCE);
+    }
+}
@@ -0,0 +1,119 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.snapshot;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.mappers.BankAccountMapper;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.services.BankAccountService;
+import com.grpc.bankService.AccountSnapshotBatch;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.UUID;
+
+/**
+ * Writes a balance range as a snapshot file of length-prefixed AccountSnapshotBatch messages,
+ * readable with AccountSnapshotBatch.parseDelimitedFrom until it returns null.
+ * The file is written under a temporary name and renamed once complete, the temporary file is removed when
+ * the write fails or is cancelled.
+ */
+@Slf4j
+@Component
+public class SnapshotWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final BankAccountService bankAccountService;
+    private final Path directory;
+
+    public SnapshotWriter(BankAccountService bankAccountService, @Value(value = "${bank-account.snapshot.directory:snapshots}") Path directory) {
+        this.bankAccountService = bankAccountService;
+        this.directory = directory;
+    }
+
+    public Mono<SnapshotFile> write(BigDecimal min, BigDecimal max) {
+        return Mono.defer(() -> {
+            final var startedAt = System.nanoTime();
+            // two snapshots started in the same millisecond must not share a file
+            final var file = directory.resolve(String.format("accounts-%d-%s.snapshot", System.currentTimeMillis(), UUID.randomUUID()));
+            final var partFile = file.resolveSibling(file.getFileName() + ".part");
+
+            return Flux.using(() -> open(partFile),
+                            out -> bankAccountService.exportBankAccountChunksByBalance(min, max)
+                                    .filter(chunk -> !chunk.isEmpty())
+                                    .publishOn(Schedulers.boundedElastic(), 1)
+                                    .map(chunk -> {
+                                        writeDelimited(out, chunk.size(), BankAccountMapper.toSnapshotBatch(chunk));
+                                        return chunk.size();
+                                    }),
+                            SnapshotWriter::close)
+                    .reduce(0L, Long::sum)
+                    .map(accounts -> {
+                        var snapshotFile = new SnapshotFile(move(partFile, file).toAbsolutePath().toString(), accounts, size(file), Duration.ofNanos(System.nanoTime() - startedAt));
+                        log.info("snapshot written: {}", snapshotFile);
+                        return snapshotFile;
+                    })
+                    .doFinally(signal -> {
+                        if (signal != SignalType.ON_COMPLETE) delete(partFile);
+                    });
+        });
+    }
+
+    private OutputStream open(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        return new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE);
+    }
+
+    private static void writeDelimited(OutputStream out, int accounts, AccountSnapshotBatch batch) {
+        try {
+            batch.writeDelimitedTo(out);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(String.format("cannot write snapshot batch of %d accounts", accounts), ex);
+        }
+    }
+
+    private static void close(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static Path move(Path source, Path target) {
+        try {
+            return Files.move(source, target);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            log.warn("cannot delete {}", file, ex);
+        }
+    }
+
+    public record SnapshotFile(String path, long accounts, long bytes, Duration elapsed) {
+    }
+}
@@ -0,0 +1,56 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.tracing;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.stereotype.Component;
+
+import java.util.function.Supplier;
+
+/**
+ * Tags the current span only when it is sampled and recording, values are rendered after that check and
+ * truncated to tracing.max-tag-length. Tag identifiers and sizes, not entities or request payloads.
+ */
+@Component
+public class SpanTagger {
+
+    private final Tracer tracer;
+    private final int maxTagLength;
+
+    public SpanTagger(Tracer tracer, @Value(value = "${tracing.max-tag-length:256}") int maxTagLength) {
+        this.tracer = tracer;
+        this.maxTagLength = maxTagLength;
+    }
+
+    /**
+     * @param value rendered with String.valueOf only when the span is recording, e.g. an id or an amount
+     */
+    public void tag(String key, Object value) {
+        var span = recordingSpan();
+        if (span != null) span.tag(key, truncate(String.valueOf(value)));
+    }
+
+    public void tag(String key, long value) {
+        var span = recordingSpan();
+        if (span != null) span.tag(key, String.valueOf(value));
+    }
+
+    public void tag(String key, Supplier<String> value) {
+        var span = recordingSpan();
+        if (span != null) span.tag(key, truncate(value.get()));
+    }
+
+    public void error(Throwable ex) {
+        var span = tracer.currentSpan();
+        if (span != null) span.error(ex);
+    }
+
+    private Span recordingSpan() {
+        var span = tracer.currentSpan();
+        return span != null && !span.isNoop() ? span : null;
+    }
+
+    private String truncate(String value) {
+        return value.length() <= maxTagLength ? value : value.substring(0, maxTagLength);
+    }
+}
@@ -0,0 +1 @@
+CREATE INDEX IF NOT EXISTS bank_account_balance_id_idx ON microservices.bank_accounts (balance, bank_account_id);
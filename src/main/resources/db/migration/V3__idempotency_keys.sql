@@ -0,0 +1,11 @@
+CREATE TABLE IF NOT EXISTS microservices.idempotency_keys
+(
+    idempotency_key VARCHAR(128) PRIMARY KEY,
+    bank_account_id UUID           NOT NULL,
+    amount          DECIMAL(16, 2) NOT NULL,
+    balance         DECIMAL(16, 2),
+    updated_at      TIMESTAMP WITH TIME ZONE,
+    created_at      TIMESTAMP WITH TIME ZONE DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE INDEX IF NOT EXISTS idempotency_keys_created_at_idx ON microservices.idempotency_keys (created_at);
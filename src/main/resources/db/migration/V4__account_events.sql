@@ -0,0 +1,17 @@
+CREATE TABLE IF NOT EXISTS microservices.account_events
+(
+    event_id        BIGINT GENERATED ALWAYS AS IDENTITY PRIMARY KEY,
+    event_offset    BIGINT UNIQUE,
+    bank_account_id UUID           NOT NULL,
+    event_type      VARCHAR(16)    NOT NULL,
+    amount          DECIMAL(16, 2) NOT NULL,
+    balance         DECIMAL(16, 2) NOT NULL,
+    currency        VARCHAR(3)     NOT NULL,
+    created_at      TIMESTAMP WITH TIME ZONE DEFAULT CURRENT_TIMESTAMP,
+    published_at    TIMESTAMP WITH TIME ZONE
+);
+
+CREATE SEQUENCE IF NOT EXISTS microservices.account_events_offset_seq;
+
+CREATE INDEX IF NOT EXISTS account_events_unpublished_idx ON microservices.account_events (event_id) WHERE event_offset IS NULL;
+CREATE INDEX IF NOT EXISTS account_events_published_at_idx ON microservices.account_events (published_at);
@@ -0,0 +1,16 @@
+-- payload: id,balance,currency,updated_at epoch micros, delivered to listeners when the transaction commits
+CREATE OR REPLACE FUNCTION microservices.notify_balance_change() RETURNS TRIGGER AS
+$$
+BEGIN
+    PERFORM pg_notify('bank_account_balance',
+                      NEW.bank_account_id::TEXT || ',' || NEW.balance::TEXT || ',' || NEW.currency || ',' ||
+                      (EXTRACT(EPOCH FROM NEW.updated_at) * 1000000)::BIGINT);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER bank_accounts_balance_notify
+    AFTER INSERT OR UPDATE OF balance
+    ON microservices.bank_accounts
+    FOR EACH ROW
+EXECUTE FUNCTION microservices.notify_balance_change();
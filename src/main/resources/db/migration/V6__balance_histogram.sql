@@ -0,0 +1,100 @@
+-- Accounts and balance total per balance bucket. Bucket 0 holds negative balances, bucket 1 is [0, 1), then every
+-- power of two is split into 16 equal buckets up to the largest DECIMAL(16, 2) balance, about 6% relative width.
+CREATE TABLE IF NOT EXISTS microservices.balance_histogram
+(
+    bucket      INT PRIMARY KEY,
+    lower_bound DECIMAL(16, 2) NOT NULL UNIQUE,
+    accounts    BIGINT         NOT NULL DEFAULT 0,
+    balance_sum DECIMAL(32, 2) NOT NULL DEFAULT 0
+);
+
+INSERT INTO microservices.balance_histogram (bucket, lower_bound)
+SELECT 0, -99999999999999.99
+UNION ALL
+SELECT 1, 0
+UNION ALL
+SELECT 2 + e * 16 + s, round(power(2::NUMERIC, e) * (1 + s / 16.0), 2)
+FROM generate_series(0, 46) e,
+     generate_series(0, 15) s
+WHERE power(2::NUMERIC, e) * (1 + s / 16.0) < 100000000000000;
+
+-- writes append their changes here instead of updating the shared bucket rows, so concurrent balance updates
+-- never wait on each other, BalanceHistogramRepository folds the deltas into balance_histogram
+CREATE TABLE IF NOT EXISTS microservices.balance_histogram_deltas
+(
+    delta_id    BIGINT GENERATED ALWAYS AS IDENTITY PRIMARY KEY,
+    bucket      INT            NOT NULL,
+    accounts    BIGINT         NOT NULL,
+    balance_sum DECIMAL(32, 2) NOT NULL
+);
+
+CREATE OR REPLACE FUNCTION microservices.balance_bucket(balance NUMERIC) RETURNS INT AS
+$$
+SELECT bucket
+FROM microservices.balance_histogram
+WHERE lower_bound <= balance
+ORDER BY lower_bound DESC
+LIMIT 1;
+$$ LANGUAGE sql STABLE;
+
+-- one delta row per bucket and statement, a bulk insert of 500 accounts appends a handful of rows
+CREATE OR REPLACE FUNCTION microservices.balance_histogram_delta() RETURNS TRIGGER AS
+$$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO microservices.balance_histogram_deltas (bucket, accounts, balance_sum)
+        SELECT microservices.balance_bucket(balance), count(*), sum(balance)
+        FROM new_rows
+        GROUP BY 1;
+    ELSIF TG_OP = 'DELETE' THEN
+        INSERT INTO microservices.balance_histogram_deltas (bucket, accounts, balance_sum)
+        SELECT microservices.balance_bucket(balance), -count(*), -sum(balance)
+        FROM old_rows
+        GROUP BY 1;
+    ELSE
+        INSERT INTO microservices.balance_histogram_deltas (bucket, accounts, balance_sum)
+        SELECT bucket, sum(accounts), sum(balance_sum)
+        FROM (SELECT microservices.balance_bucket(n.balance) AS bucket, 1 AS accounts, n.balance AS balance_sum
+              FROM new_rows n
+                       JOIN old_rows o USING (bank_account_id)
+              WHERE n.balance <> o.balance
+              UNION ALL
+              SELECT microservices.balance_bucket(o.balance), -1, -o.balance
+              FROM new_rows n
+                       JOIN old_rows o USING (bank_account_id)
+              WHERE n.balance <> o.balance) changes
+        GROUP BY bucket
+        HAVING sum(accounts) <> 0 OR sum(balance_sum) <> 0;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER bank_accounts_histogram_insert
+    AFTER INSERT
+    ON microservices.bank_accounts
+    REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION microservices.balance_histogram_delta();
+
+CREATE TRIGGER bank_accounts_histogram_update
+    AFTER UPDATE
+    ON microservices.bank_accounts
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION microservices.balance_histogram_delta();
+
+CREATE TRIGGER bank_accounts_histogram_delete
+    AFTER DELETE
+    ON microservices.bank_accounts
+    REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT
+EXECUTE FUNCTION microservices.balance_histogram_delta();
+
+UPDATE microservices.balance_histogram h
+SET accounts    = existing.accounts,
+    balance_sum = existing.balance_sum
+FROM (SELECT microservices.balance_bucket(balance) AS bucket, count(*) AS accounts, sum(balance) AS balance_sum
+      FROM microservices.bank_accounts
+      GROUP BY 1) existing
+WHERE h.bucket = existing.bucket;
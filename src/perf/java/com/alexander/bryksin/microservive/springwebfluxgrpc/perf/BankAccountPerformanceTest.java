@@ -0,0 +1,287 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.perf;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.BalanceCursor;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.DepositBalanceDto;
+import com.grpc.bankService.*;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Throughput and latency of the gRPC and REST endpoints against a real Postgres with the Flyway migrations applied.
+ * Scenarios run in order on the same seeded data set, see {@link LoadSettings} for the knobs.
+ */
+@Slf4j
+@ActiveProfiles("perf")
+// registered before the SpringExtension, so Postgres is stopped only after the dirtied context has been closed
+@ExtendWith(BankAccountPerformanceTest.StopEmbeddedPostgres.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class BankAccountPerformanceTest {
+
+    private static final LoadSettings settings = LoadSettings.fromSystemProperties();
+    private static final int grpcPort = freePort();
+    private static final long MAX_SEED_BALANCE = 1_000_000;
+    private static final long MAX_RANGE_BALANCE = 1_000_000_000_000L;
+    private static final int SEED_CHUNK_SIZE = 1000;
+
+    private static EmbeddedPostgres embeddedPostgres;
+
+    @LocalServerPort
+    private int httpPort;
+
+    private ManagedChannel channel;
+    private ReactorBankAccountServiceGrpc.ReactorBankAccountServiceStub grpcClient;
+    private WebClient webClient;
+    private final List<String> accountIds = new ArrayList<>();
+
+    @DynamicPropertySource
+    static void datasourceProperties(DynamicPropertyRegistry registry) {
+        final var jdbcUrl = settings.embeddedPostgres() ? startEmbeddedPostgres() : settings.postgresUrl();
+        registry.add("spring.flyway.url", () -> jdbcUrl);
+        registry.add("spring.r2dbc.url", () -> jdbcUrl.replaceFirst("^jdbc:", "r2dbc:"));
+        registry.add("grpc.server.port", () -> grpcPort);
+    }
+
+    @BeforeAll
+    void setUp() {
+        log.info("load settings: {}", settings);
+        channel = ManagedChannelBuilder.forAddress("localhost", grpcPort).usePlaintext().build();
+        grpcClient = ReactorBankAccountServiceGrpc.newReactorStub(channel);
+        webClient = WebClient.builder().baseUrl("http://localhost:" + httpPort + "/api/v1/bank").build();
+    }
+
+    @AfterAll
+    void tearDown() {
+        channel.shutdownNow();
+    }
+
+    @Test
+    @Order(1)
+    void seedAccounts() {
+        final var runId = ThreadLocalRandom.current().nextInt(100);
+        final var chunks = (settings.accounts() + SEED_CHUNK_SIZE - 1) / SEED_CHUNK_SIZE;
+
+        final var report = LatencyReport.run("seed-grpc-client-stream", chunks, 1, chunk -> {
+            final var from = chunk * SEED_CHUNK_SIZE;
+            final var to = Math.min(settings.accounts(), from + SEED_CHUNK_SIZE);
+            return grpcClient.createBankAccounts(Flux.range(from, to - from).map(i -> createRequest(runId, i)))
+                    .doOnNext(response -> response.getResultsList().forEach(result -> {
+                        if (result.hasBankAccount()) accountIds.add(result.getBankAccount().getId());
+                        else log.warn("account {} not created: {}", result.getIndex(), result.getError());
+                    }));
+        });
+
+        assertEquals(0, report.errors());
+        assertEquals(settings.accounts(), accountIds.size());
+    }
+
+    @Test
+    @Order(2)
+    void grpcHotAccountDeposits() {
+        final var report = LatencyReport.run("grpc-hot-deposits", settings.operations(), settings.concurrency(), i ->
+                grpcClient.depositBalance(DepositBalanceRequest.newBuilder()
+                        .setId(skewedAccountId())
+                        .setAmount(MoneyV1.newBuilder().setUnscaled(100).setScale(2))
+                        .build()));
+
+        assertEquals(0, report.errors());
+    }
+
+    @Test
+    @Order(3)
+    void restHotAccountDeposits() {
+        final var report = LatencyReport.run("rest-hot-deposits", settings.operations(), settings.concurrency(), i ->
+                webClient.put()
+                        .uri("/deposit/{id}", skewedAccountId())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(new DepositBalanceDto(BigDecimal.ONE, null))
+                        .retrieve()
+                        .toBodilessEntity());
+
+        assertEquals(0, report.errors());
+    }
+
+    @Test
+    @Order(4)
+    void grpcRandomReads() {
+        final var report = LatencyReport.run("grpc-random-reads", settings.operations(), settings.concurrency(), i ->
+                grpcClient.getBankAccountById(GetBankAccountByIdRequest.newBuilder().setId(randomAccountId()).build()));
+
+        assertEquals(0, report.errors());
+    }
+
+    @Test
+    @Order(5)
+    void restRandomReads() {
+        final var report = LatencyReport.run("rest-random-reads", settings.operations(), settings.concurrency(), i ->
+                webClient.get()
+                        .uri("/{id}", randomAccountId())
+                        .retrieve()
+                        .bodyToMono(String.class));
+
+        assertEquals(0, report.errors());
+    }
+
+    @Test
+    @Order(6)
+    void grpcDeepPageWithOffset() {
+        final var report = LatencyReport.run("grpc-deep-page-offset", scanOperations(), settings.concurrency(), i ->
+                grpcClient.getAllByBalanceWithPagination(GetAllByBalanceWithPaginationRequest.newBuilder()
+                        .setMin(0)
+                        .setMax(MAX_RANGE_BALANCE)
+                        .setPage(deepPage())
+                        .setSize(settings.pageSize())
+                        .build()));
+
+        assertEquals(0, report.errors());
+    }
+
+    @Test
+    @Order(7)
+    void restDeepPageWithOffset() {
+        final var report = LatencyReport.run("rest-deep-page-offset", scanOperations(), settings.concurrency(), i ->
+                webClient.get()
+                        .uri(uriBuilder -> uriBuilder.path("/all/balance")
+                                .queryParam("min", 0)
+                                .queryParam("max", MAX_RANGE_BALANCE)
+                                .queryParam("page", deepPage())
+                                .queryParam("size", settings.pageSize())
+                                .build())
+                        .retrieve()
+                        .bodyToMono(String.class));
+
+        assertEquals(0, report.errors());
+    }
+
+    @Test
+    @Order(8)
+    void grpcDeepPageWithCursor() {
+        final var report = LatencyReport.run("grpc-deep-page-cursor", scanOperations(), settings.concurrency(), i ->
+                grpcClient.getAllByBalanceWithCursor(GetAllByBalanceWithCursorRequest.newBuilder()
+                        .setMin(0)
+                        .setMax(MAX_RANGE_BALANCE)
+                        .setSize(settings.pageSize())
+                        .setCursor(deepCursor())
+                        .build()));
+
+        assertEquals(0, report.errors());
+    }
+
+    @Test
+    @Order(9)
+    void restDeepPageWithCursor() {
+        final var report = LatencyReport.run("rest-deep-page-cursor", scanOperations(), settings.concurrency(), i ->
+                webClient.get()
+                        .uri(uriBuilder -> uriBuilder.path("/all/balance/cursor")
+                                .queryParam("min", 0)
+                                .queryParam("max", MAX_RANGE_BALANCE)
+                                .queryParam("size", settings.pageSize())
+                                .queryParam("cursor", deepCursor())
+                                .build())
+                        .retrieve()
+                        .bodyToMono(String.class));
+
+        assertEquals(0, report.errors());
+    }
+
+    private static CreateBankAccountRequest createRequest(int runId, int index) {
+        return CreateBankAccountRequest.newBuilder()
+                .setEmail(String.format("perf-%d-%d@example.com", runId, index))
+                .setFirstName("Perf")
+                .setLastName("Account")
+                .setAddress("Load test street " + index)
+                .setPhone(String.format("%02d%08d", runId, index))
+                .setCurrency("USD")
+                .setBalance(ThreadLocalRandom.current().nextLong(MAX_SEED_BALANCE))
+                .build();
+    }
+
+    /**
+     * Picks one of the first hotAccounts ids with probability hotRatio, any account otherwise.
+     */
+    private String skewedAccountId() {
+        final var random = ThreadLocalRandom.current();
+        if (random.nextDouble() < settings.hotRatio()) {
+            return accountIds.get(random.nextInt(Math.min(settings.hotAccounts(), accountIds.size())));
+        }
+        return randomAccountId();
+    }
+
+    private String randomAccountId() {
+        return accountIds.get(ThreadLocalRandom.current().nextInt(accountIds.size()));
+    }
+
+    private int scanOperations() {
+        return Math.max(1, settings.operations() / 10);
+    }
+
+    private int deepPage() {
+        final var pages = Math.max(1, accountIds.size() / settings.pageSize());
+        final var firstDeepPage = (int) (pages * settings.deepPageRatio());
+        return firstDeepPage + ThreadLocalRandom.current().nextInt(Math.max(1, pages - firstDeepPage));
+    }
+
+    /**
+     * Cursor at the same depth as {@link #deepPage()}, assuming the seeded balances are spread uniformly.
+     */
+    private String deepCursor() {
+        final var from = (long) (MAX_SEED_BALANCE * settings.deepPageRatio());
+        final var balance = ThreadLocalRandom.current().nextLong(from, MAX_SEED_BALANCE);
+        return new BalanceCursor(BigDecimal.valueOf(balance), new UUID(0, 0)).toToken();
+    }
+
+    private static String startEmbeddedPostgres() {
+        try {
+            embeddedPostgres = EmbeddedPostgres.builder().start();
+            return String.format("jdbc:postgresql://localhost:%d/postgres", embeddedPostgres.getPort());
+        } catch (IOException ex) {
+            throw new UncheckedIOException("cannot start embedded postgres", ex);
+        }
+    }
+
+    private static int freePort() {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * The pollers and the LISTEN connection of a running context would keep retrying against a stopped database.
+     */
+    static class StopEmbeddedPostgres implements AfterAllCallback {
+        @Override
+        public void afterAll(ExtensionContext context) throws IOException {
+            if (embeddedPostgres != null) embeddedPostgres.close();
+        }
+    }
+}
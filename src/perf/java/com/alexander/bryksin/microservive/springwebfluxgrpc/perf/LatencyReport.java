@@ -0,0 +1,101 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.perf;
+
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Drives one scenario and records the latency of every request in microseconds.
+ * The percentile distribution is written as a .hgrm file that can be plotted with the HdrHistogram plotter.
+ */
+@Slf4j
+public final class LatencyReport {
+
+    private static final Path REPORT_DIR = Path.of("target", "perf");
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final double MICROS_PER_MILLI = 1000.0;
+
+    private final String scenario;
+    private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+    private final AtomicLong errors = new AtomicLong();
+
+    private Histogram histogram;
+    private long elapsedNanos;
+
+    private LatencyReport(String scenario) {
+        this.scenario = scenario;
+    }
+
+    public static LatencyReport run(String scenario, int operations, int concurrency, IntFunction<Mono<?>> request) {
+        final var report = new LatencyReport(scenario);
+        final var startedAt = System.nanoTime();
+
+        Flux.range(0, operations)
+                .flatMap(i -> report.timed(request.apply(i)), concurrency)
+                .blockLast();
+
+        report.elapsedNanos = System.nanoTime() - startedAt;
+        report.histogram = report.recorder.getIntervalHistogram();
+        report.write();
+        return report;
+    }
+
+    public long errors() {
+        return errors.get();
+    }
+
+    public long count() {
+        return histogram.getTotalCount();
+    }
+
+    public double throughput() {
+        return count() / (elapsedNanos / 1e9);
+    }
+
+    private Mono<?> timed(Mono<?> request) {
+        return Mono.defer(() -> {
+            final var startedAt = System.nanoTime();
+            return request
+                    .doOnError(ex -> {
+                        if (errors.getAndIncrement() == 0) log.warn("{} first error: {}", scenario, ex.toString());
+                    })
+                    .doOnTerminate(() -> recorder.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedAt))))
+                    .onErrorResume(ex -> Mono.empty());
+        });
+    }
+
+    private void write() {
+        log.info("{}: {} requests, {} errors, {} req/s, p50={}ms p99={}ms p999={}ms max={}ms",
+                scenario,
+                count(),
+                errors(),
+                String.format("%.1f", throughput()),
+                millis(histogram.getValueAtPercentile(50.0)),
+                millis(histogram.getValueAtPercentile(99.0)),
+                millis(histogram.getValueAtPercentile(99.9)),
+                millis(histogram.getMaxValue()));
+
+        try {
+            Files.createDirectories(REPORT_DIR);
+            try (var out = new PrintStream(Files.newOutputStream(REPORT_DIR.resolve(scenario + ".hgrm")))) {
+                histogram.outputPercentileDistribution(out, MICROS_PER_MILLI);
+            }
+        } catch (IOException ex) {
+            log.error("cannot write {} histogram", scenario, ex);
+        }
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.3f", micros / MICROS_PER_MILLI);
+    }
+}
@@ -0,0 +1,39 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.perf;
+
+/**
+ * Load shape of a performance run, every value can be overridden with a -Dperf.* system property.
+ *
+ * @param concurrency   requests in flight per scenario
+ * @param operations    requests issued per scenario
+ * @param accounts      accounts seeded before the scenarios run
+ * @param hotAccounts   size of the hot set that receives the skewed share of deposits
+ * @param hotRatio      share of deposits that go to the hot set, 0 spreads them uniformly
+ * @param pageSize      page size of the range scans
+ * @param deepPageRatio how deep into the balance range the offset scans start, 0.9 reads the last tenth
+ * @param postgresUrl   jdbc url of a running Postgres, when empty an embedded one is started
+ */
+public record LoadSettings(int concurrency,
+                           int operations,
+                           int accounts,
+                           int hotAccounts,
+                           double hotRatio,
+                           int pageSize,
+                           double deepPageRatio,
+                           String postgresUrl) {
+
+    public static LoadSettings fromSystemProperties() {
+        return new LoadSettings(
+                Integer.getInteger("perf.concurrency", 32),
+                Integer.getInteger("perf.operations", 20_000),
+                Integer.getInteger("perf.accounts", 10_000),
+                Integer.getInteger("perf.hotAccounts", 10),
+                Double.parseDouble(System.getProperty("perf.hotRatio", "0.8")),
+                Integer.getInteger("perf.pageSize", 20),
+                Double.parseDouble(System.getProperty("perf.deepPageRatio", "0.9")),
+                System.getProperty("perf.postgres.url", ""));
+    }
+
+    public boolean embeddedPostgres() {
+        return postgresUrl.isBlank();
+    }
+}
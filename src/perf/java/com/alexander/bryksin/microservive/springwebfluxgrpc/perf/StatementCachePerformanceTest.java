@@ -0,0 +1,145 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.perf;
+
+import io.r2dbc.postgresql.PostgresqlConnectionFactoryProvider;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import io.r2dbc.spi.Statement;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import lombok.extern.slf4j.Slf4j;
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Latency of the hot queries on one connection with the driver's prepared statement cache disabled and bounded,
+ * without the application around it. Every round runs findById, a balance page, the range count and a deposit,
+ * with the same constant SQL the repository uses, so with the cache on each of them is parsed once per connection.
+ */
+@Slf4j
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class StatementCachePerformanceTest {
+
+    private static final LoadSettings settings = LoadSettings.fromSystemProperties();
+    private static final int CACHE_SIZE = Integer.getInteger("perf.statementCacheSize", 256);
+    private static final long MAX_SEED_BALANCE = 1_000_000;
+
+    // same statements as BankAccountPostgresRepositoryImpl and the derived findById, with the driver's bind markers
+    private static final String FIND_BY_ID_QUERY = "SELECT * FROM microservices.bank_accounts WHERE bank_account_id = $1 LIMIT 2";
+    private static final String FIND_BY_BALANCE_PAGE_QUERY = "SELECT * FROM microservices.bank_accounts WHERE balance BETWEEN $1 AND $2 LIMIT $3 OFFSET $4";
+    private static final String COUNT_BY_BALANCE_QUERY = "SELECT count(bank_account_id) as total FROM microservices.bank_accounts WHERE balance BETWEEN $1 AND $2";
+    private static final String UPDATE_BALANCE_QUERY = """
+            WITH updated AS (
+                UPDATE microservices.bank_accounts
+                SET balance = balance + $1, updated_at = CURRENT_TIMESTAMP
+                WHERE bank_account_id = $2 AND balance + $3 >= 0
+                RETURNING *),
+            event AS (
+                INSERT INTO microservices.account_events (bank_account_id, event_type, amount, balance, currency)
+                SELECT bank_account_id, $4, $1, balance, currency FROM updated)
+            SELECT * FROM updated""";
+
+    private EmbeddedPostgres embeddedPostgres;
+    private String r2dbcUrl;
+    private List<UUID> accountIds;
+
+    @BeforeAll
+    void setUp() throws IOException {
+        var jdbcUrl = settings.postgresUrl();
+        if (settings.embeddedPostgres()) {
+            embeddedPostgres = EmbeddedPostgres.builder().start();
+            jdbcUrl = String.format("jdbc:postgresql://localhost:%d/postgres", embeddedPostgres.getPort());
+        }
+        Flyway.configure().dataSource(jdbcUrl, "postgres", "postgres").load().migrate();
+        r2dbcUrl = jdbcUrl.replaceFirst("^jdbc:", "r2dbc:");
+
+        accountIds = Mono.usingWhen(connect(CACHE_SIZE), connection -> Flux.from(connection.createStatement("""
+                                INSERT INTO microservices.bank_accounts (first_name, last_name, email, address, phone, balance)
+                                SELECT 'Perf', 'Account', 'statement-cache-' || i || '@example.com', 'Load test street ' || i, 'sc' || i, random() * $1
+                                FROM generate_series(1, $2) i
+                                ON CONFLICT DO NOTHING
+                                RETURNING bank_account_id""")
+                        .bind("$1", MAX_SEED_BALANCE)
+                        .bind("$2", settings.accounts())
+                        .execute())
+                .flatMap(result -> result.map((row, metadata) -> row.get(0, UUID.class)))
+                .collectList(), Connection::close)
+                .block();
+        log.info("seeded {} accounts", accountIds.size());
+    }
+
+    @AfterAll
+    void tearDown() throws IOException {
+        if (embeddedPostgres != null) embeddedPostgres.close();
+    }
+
+    @Test
+    @Order(1)
+    void hotQueriesWithoutStatementCache() {
+        assertEquals(0, runHotQueries("hot-queries-statement-cache-0", 0).errors());
+    }
+
+    @Test
+    @Order(2)
+    void hotQueriesWithStatementCache() {
+        assertEquals(0, runHotQueries("hot-queries-statement-cache-" + CACHE_SIZE, CACHE_SIZE).errors());
+    }
+
+    /**
+     * One connection and one round in flight at a time, the difference is the parse and plan work per statement.
+     */
+    private LatencyReport runHotQueries(String scenario, int cacheSize) {
+        var connection = connect(cacheSize).block();
+        try {
+            return LatencyReport.run(scenario, settings.operations(), 1, i -> hotRound(connection));
+        } finally {
+            Mono.from(connection.close()).block();
+        }
+    }
+
+    private Mono<?> hotRound(Connection connection) {
+        var random = ThreadLocalRandom.current();
+        var id = accountIds.get(random.nextInt(accountIds.size()));
+        var min = BigDecimal.valueOf(random.nextLong(MAX_SEED_BALANCE / 2));
+        var max = min.add(BigDecimal.valueOf(MAX_SEED_BALANCE / 100));
+
+        return rows(connection.createStatement(FIND_BY_ID_QUERY).bind("$1", id))
+                .then(rows(connection.createStatement(FIND_BY_BALANCE_PAGE_QUERY)
+                        .bind("$1", min)
+                        .bind("$2", max)
+                        .bind("$3", settings.pageSize())
+                        .bind("$4", (long) random.nextInt(10) * settings.pageSize())))
+                .then(rows(connection.createStatement(COUNT_BY_BALANCE_QUERY).bind("$1", min).bind("$2", max)))
+                .then(rows(connection.createStatement(UPDATE_BALANCE_QUERY)
+                        .bind("$1", BigDecimal.ONE)
+                        .bind("$2", id)
+                        .bind("$3", BigDecimal.ZERO)
+                        .bind("$4", "DEPOSITED")));
+    }
+
+    private static Mono<Long> rows(Statement statement) {
+        return Flux.from(statement.execute())
+                .flatMap(result -> result.map((row, metadata) -> 1))
+                .count();
+    }
+
+    private Mono<Connection> connect(int cacheSize) {
+        var options = ConnectionFactoryOptions.parse(r2dbcUrl).mutate()
+                .option(ConnectionFactoryOptions.USER, "postgres")
+                .option(ConnectionFactoryOptions.PASSWORD, "postgres")
+                .option(PostgresqlConnectionFactoryProvider.PREPARED_STATEMENT_CACHE_QUERIES, cacheSize)
+                .build();
+        return Mono.from(ConnectionFactories.get(options).create());
+    }
+}
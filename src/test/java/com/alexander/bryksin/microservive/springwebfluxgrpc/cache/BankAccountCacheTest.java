@@ -0,0 +1,54 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.cache;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BankAccountCacheTest {
+
+    private final BankAccountCache cache = new BankAccountCache(new SimpleMeterRegistry(), true, 100, Duration.ofMinutes(1));
+
+    @Test
+    void concurrentMissesShareOneLoad() {
+        var id = UUID.randomUUID();
+        var loads = new AtomicInteger();
+        var loaded = Sinks.<BankAccount>one();
+
+        var first = cache.get(id, key -> {
+            loads.incrementAndGet();
+            return loaded.asMono();
+        });
+        var second = cache.get(id, key -> {
+            loads.incrementAndGet();
+            return loaded.asMono();
+        });
+
+        StepVerifier.create(first.zipWith(second))
+                .then(() -> loaded.tryEmitValue(BankAccount.builder().id(id).build()))
+                .assertNext(accounts -> assertEquals(accounts.getT1().getId(), accounts.getT2().getId()))
+                .verifyComplete();
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void cancelledCallerDoesNotCancelTheSharedLoad() {
+        var id = UUID.randomUUID();
+        var loaded = Sinks.<BankAccount>one();
+
+        var cancelled = cache.get(id, key -> loaded.asMono()).subscribe();
+
+        StepVerifier.create(cache.get(id, key -> loaded.asMono()))
+                .then(cancelled::dispose)
+                .then(() -> loaded.tryEmitValue(BankAccount.builder().id(id).build()))
+                .assertNext(bankAccount -> assertEquals(id, bankAccount.getId()))
+                .verifyComplete();
+    }
+}
@@ -0,0 +1,64 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.delivery.http;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.Currency;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.DepositBalanceDto;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.dto.WithdrawBalanceDto;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.services.BankAccountService;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.tracing.SpanTagger;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import reactor.core.publisher.Mono;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BankAccountControllerTest {
+
+    private static final BigDecimal AMOUNT = new BigDecimal("10.00");
+
+    private final BankAccountService bankAccountService = mock(BankAccountService.class);
+    private final BankAccountController controller = new BankAccountController(bankAccountService, mock(SpanTagger.class));
+    private final UUID id = UUID.randomUUID();
+    private final BankAccount bankAccount = BankAccount.builder().id(id).currency(Currency.USD).balance(AMOUNT).build();
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", " ", "\t"})
+    void depositWithBlankIdempotencyKeyIsNotIdempotent(String idempotencyKey) {
+        when(bankAccountService.depositAmount(id, AMOUNT)).thenReturn(Mono.just(bankAccount));
+
+        controller.depositBalance(new DepositBalanceDto(AMOUNT, idempotencyKey), id).block();
+
+        verify(bankAccountService).depositAmount(id, AMOUNT);
+        verify(bankAccountService, never()).depositAmount(any(UUID.class), any(BigDecimal.class), anyString());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", " ", "\t"})
+    void withdrawWithBlankIdempotencyKeyIsNotIdempotent(String idempotencyKey) {
+        when(bankAccountService.withdrawAmount(id, AMOUNT)).thenReturn(Mono.just(bankAccount));
+
+        controller.withdrawBalance(new WithdrawBalanceDto(AMOUNT, idempotencyKey), id).block();
+
+        verify(bankAccountService).withdrawAmount(id, AMOUNT);
+        verify(bankAccountService, never()).withdrawAmount(any(UUID.class), any(BigDecimal.class), anyString());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"key-1", " key-1 "})
+    void depositWithIdempotencyKeyIsIdempotent(String idempotencyKey) {
+        when(bankAccountService.depositAmount(id, AMOUNT, idempotencyKey)).thenReturn(Mono.just(bankAccount));
+
+        controller.depositBalance(new DepositBalanceDto(AMOUNT, idempotencyKey), id).block();
+
+        verify(bankAccountService).depositAmount(id, AMOUNT, idempotencyKey);
+        verify(bankAccountService, never()).depositAmount(id, AMOUNT);
+    }
+}
@@ -0,0 +1,99 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.domain;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BalanceHistogramTest {
+
+    // [0, 1.00): 10 accounts, [1.00, 2.00): 10 accounts, [2.00, 4.00): 20 accounts, [4.00, ...): empty
+    private final BalanceHistogram histogram = new BalanceHistogram(
+            new long[]{0, 100, 200, 400},
+            new long[]{10, 10, 20, 0},
+            new BigDecimal[]{new BigDecimal("5.00"), new BigDecimal("15.00"), new BigDecimal("60.00"), BigDecimal.ZERO},
+            Instant.EPOCH);
+
+    @Test
+    void unboundedRangeCoversEveryBucket() {
+        var stats = histogram.stats(null, null, new double[0]);
+
+        assertEquals(40, stats.count());
+        assertEquals(new BigDecimal("80.00"), stats.sum());
+        assertEquals(new BigDecimal("2.00"), stats.mean());
+        assertTrue(stats.exact());
+    }
+
+    @Test
+    void rangeOnBucketBoundsIsExact() {
+        var stats = histogram.stats(new BigDecimal("1.00"), new BigDecimal("3.99"), new double[0]);
+
+        assertEquals(30, stats.count());
+        assertEquals(new BigDecimal("75.00"), stats.sum());
+        assertTrue(stats.exact());
+    }
+
+    @Test
+    void rangeCuttingABucketIsInterpolated() {
+        var stats = histogram.stats(BigDecimal.ZERO, new BigDecimal("0.49"), new double[0]);
+
+        // half of the first bucket, its accounts assumed evenly spread over 0.00 to 0.49
+        assertEquals(5, stats.count());
+        assertEquals(new BigDecimal("1.22"), stats.sum());
+        assertFalse(stats.exact());
+    }
+
+    @Test
+    void rangeWithoutAccountsIsEmpty() {
+        var stats = histogram.stats(new BigDecimal("10.00"), new BigDecimal("20.00"), new double[]{0.5});
+
+        assertEquals(0, stats.count());
+        assertEquals(new BigDecimal("0.00"), stats.sum());
+        assertEquals(new BigDecimal("0.00"), stats.mean());
+        assertEquals(new BigDecimal("0.00"), stats.quantiles().get(0).balance());
+        assertEquals(0, histogram.count(new BigDecimal("3.00"), new BigDecimal("2.00")));
+    }
+
+    @Test
+    void quantilesInterpolateWithinTheirBucket() {
+        var stats = histogram.stats(null, null, new double[]{0, 0.5, 0.75, 1});
+
+        assertEquals(List.of(
+                new BalanceStats.Quantile(0, new BigDecimal("0.00")),
+                new BalanceStats.Quantile(0.5, new BigDecimal("1.99")),
+                new BalanceStats.Quantile(0.75, new BigDecimal("3.00")),
+                new BalanceStats.Quantile(1, new BigDecimal("3.99"))), stats.quantiles());
+    }
+
+    @Test
+    void quantilesOutsideZeroToOneAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> histogram.stats(null, null, new double[]{1.5}));
+        assertThrows(IllegalArgumentException.class, () -> histogram.stats(null, null, new double[]{-0.1}));
+    }
+
+    @Test
+    void bucketSumsBeyondTheLongRangeAreKept() {
+        var large = new BigDecimal("99999999999999999999999999999.99");
+        var histogram = new BalanceHistogram(new long[]{0, 100}, new long[]{1, 1}, new BigDecimal[]{large, large}, Instant.EPOCH);
+
+        assertEquals(large.add(large), histogram.stats(null, null, new double[0]).sum());
+    }
+
+    @Test
+    void bucketArraysMustHaveTheSameLength() {
+        assertThrows(IllegalArgumentException.class, () -> new BalanceHistogram(new long[]{0, 100}, new long[]{1}, new BigDecimal[]{BigDecimal.ONE}, Instant.EPOCH));
+    }
+
+    @Test
+    void balancesConvertToCentsOnlyWithoutRounding() {
+        assertEquals(1050, BalanceHistogram.toCents(new BigDecimal("10.5")));
+        assertEquals(-1, BalanceHistogram.toCents(new BigDecimal("-0.01")));
+        assertThrows(ArithmeticException.class, () -> BalanceHistogram.toCents(new BigDecimal("0.001")));
+    }
+}
@@ -0,0 +1,46 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.domain;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdempotencyRecordTest {
+
+    private final UUID id = UUID.randomUUID();
+    private final LocalDateTime updatedAt = LocalDateTime.of(2022, 11, 1, 12, 0);
+    private final IdempotencyRecord record = new IdempotencyRecord("key", id, new BigDecimal("-25.00"), new BigDecimal("75.00"), updatedAt);
+
+    @Test
+    void matchesTheSameUpdateRegardlessOfScale() {
+        assertTrue(record.matches(id, new BigDecimal("-25")));
+    }
+
+    @Test
+    void doesNotMatchAnotherAmountOrDirection() {
+        assertFalse(record.matches(id, new BigDecimal("-30.00")));
+        assertFalse(record.matches(id, new BigDecimal("25.00")));
+    }
+
+    @Test
+    void doesNotMatchAnotherAccount() {
+        assertFalse(record.matches(UUID.randomUUID(), new BigDecimal("-25.00")));
+    }
+
+    @Test
+    void replayReturnsTheBalanceRightAfterTheOriginalUpdate() {
+        var current = BankAccount.builder().id(id).email("a@b.com").balance(new BigDecimal("10.00")).updatedAt(updatedAt.plusHours(1)).build();
+
+        var replayed = record.applyTo(current);
+
+        assertEquals(new BigDecimal("75.00"), replayed.getBalance());
+        assertEquals(updatedAt, replayed.getUpdatedAt());
+        assertEquals("a@b.com", replayed.getEmail());
+        assertEquals(new BigDecimal("10.00"), current.getBalance());
+    }
+}
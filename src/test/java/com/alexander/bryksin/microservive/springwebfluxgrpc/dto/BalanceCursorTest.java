@@ -0,0 +1,67 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.dto;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BalanceCursorTest {
+
+    @Test
+    void tokenRoundTrip() {
+        var cursor = new BalanceCursor(new BigDecimal("1234.50"), UUID.randomUUID());
+
+        var token = cursor.toToken();
+
+        assertEquals(cursor, BalanceCursor.fromToken(token));
+        assertFalse(token.contains("="));
+    }
+
+    @Test
+    void tokenKeepsNegativeAndLargeBalances() {
+        var id = UUID.randomUUID();
+
+        assertEquals(new BigDecimal("-0.01"), BalanceCursor.fromToken(new BalanceCursor(new BigDecimal("-0.01"), id).toToken()).balance());
+        assertEquals(new BigDecimal("99999999999999.99"), BalanceCursor.fromToken(new BalanceCursor(new BigDecimal("99999999999999.99"), id).toToken()).balance());
+        // balances are encoded in plain notation, a negative scale must not leak an exponent into the token
+        assertEquals(new BigDecimal("1000"), BalanceCursor.fromToken(new BalanceCursor(new BigDecimal("1E+3"), id).toToken()).balance());
+    }
+
+    @Test
+    void missingTokenStartsFromTheFirstPage() {
+        assertNull(BalanceCursor.fromToken(null));
+        assertNull(BalanceCursor.fromToken(""));
+        assertNull(BalanceCursor.fromToken("  "));
+    }
+
+    @Test
+    void rejectsTokensThatAreNotBase64() {
+        assertThrows(IllegalArgumentException.class, () -> BalanceCursor.fromToken("not a cursor!"));
+    }
+
+    @Test
+    void rejectsTokensWithoutSeparator() {
+        assertThrows(IllegalArgumentException.class, () -> BalanceCursor.fromToken(encode("100.00")));
+    }
+
+    @Test
+    void rejectsTokensWithInvalidBalance() {
+        assertThrows(IllegalArgumentException.class, () -> BalanceCursor.fromToken(encode("abc:" + UUID.randomUUID())));
+    }
+
+    @Test
+    void rejectsTokensWithInvalidId() {
+        assertThrows(IllegalArgumentException.class, () -> BalanceCursor.fromToken(encode("100.00:not-a-uuid")));
+    }
+
+    private static String encode(String value) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
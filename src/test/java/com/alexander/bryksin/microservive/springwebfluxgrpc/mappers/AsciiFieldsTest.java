@@ -0,0 +1,65 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.mappers;
+
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AsciiFieldsTest {
+
+    @RepeatedTest(100)
+    void randomUuidMatchesToString() {
+        var id = UUID.randomUUID();
+
+        assertEquals(id.toString(), AsciiFields.uuid(id).toStringUtf8());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "00000000-0000-0000-0000-000000000000",
+            "00000001-0001-0001-0001-000000000001",
+            "0000000f-000f-400f-800f-00000000000f",
+            "ffffffff-ffff-ffff-ffff-ffffffffffff",
+            "0a0b0c0d-0e0f-4010-8a0b-0c0d0e0f1011"})
+    void uuidWithLeadingZeroNibblesMatchesToString(String value) {
+        var id = UUID.fromString(value);
+
+        assertEquals(id.toString(), AsciiFields.uuid(id).toStringUtf8());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            // whole minutes, toString drops the seconds
+            "2022-11-01T12:30",
+            "2022-01-09T00:00",
+            // zero seconds with a fraction keep the seconds
+            "2022-11-01T12:30:00.001",
+            "2022-11-01T12:30:00.000001",
+            "2022-11-01T12:30:00.000000001",
+            "2022-11-01T12:30:05",
+            // 3, 6 and 9 fraction digits
+            "2022-11-01T12:30:05.100",
+            "2022-11-01T12:30:05.120",
+            "2022-11-01T12:30:05.123",
+            "2022-11-01T12:30:05.123400",
+            "2022-11-01T12:30:05.000456",
+            "2022-11-01T12:30:05.123456700",
+            "2022-11-01T12:30:05.000000789",
+            "2022-11-01T23:59:59.999999999",
+            // years below 1000 are padded to four digits
+            "0000-01-01T00:00",
+            "0007-03-04T05:06:07",
+            "0999-12-31T23:59:59.5",
+            // outside four digit years the text comes from toString
+            "+10000-01-01T00:00",
+            "-0001-01-01T00:00"})
+    void dateTimeMatchesToString(String value) {
+        var dateTime = LocalDateTime.parse(value);
+
+        assertEquals(dateTime.toString(), AsciiFields.dateTime(dateTime).toStringUtf8());
+    }
+}
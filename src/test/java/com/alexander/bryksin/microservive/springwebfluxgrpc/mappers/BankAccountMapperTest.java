@@ -0,0 +1,64 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.mappers;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.exceptions.InvalidAmountException;
+import com.grpc.bankService.DepositBalanceRequest;
+import com.grpc.bankService.MoneyV1;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BankAccountMapperTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"0", "12", "12.3", "12.34", "-12.34", "99999999999999.99"})
+    void moneyRoundTrip(String amount) {
+        var decimal = new BigDecimal(amount);
+
+        var money = BankAccountMapper.toMoney(decimal);
+
+        assertEquals(decimal.unscaledValue().longValueExact(), money.getUnscaled());
+        assertEquals(decimal.scale(), money.getScale());
+        assertEquals(decimal, BankAccountMapper.fromMoney(money));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {-1, 3, 2_000_000_000, -2_000_000_000, Integer.MAX_VALUE, Integer.MIN_VALUE})
+    void moneyWithScaleOutsideTheColumnScaleIsRejected(int scale) {
+        var money = MoneyV1.newBuilder().setUnscaled(1234).setScale(scale).build();
+
+        assertThrows(InvalidAmountException.class, () -> BankAccountMapper.fromMoney(money));
+    }
+
+    @Test
+    void requestAmountWithInvalidScaleIsRejected() {
+        var request = DepositBalanceRequest.newBuilder()
+                .setAmount(MoneyV1.newBuilder().setUnscaled(1).setScale(2_000_000_000))
+                .build();
+
+        assertThrows(InvalidAmountException.class, () -> BankAccountMapper.amountOf(request));
+    }
+
+    @Test
+    void legacyAmountIsUsedWithoutMoney() {
+        assertEquals(new BigDecimal("10.5"), BankAccountMapper.amountOf(DepositBalanceRequest.newBuilder().setBalance(10.5).build()));
+    }
+
+    @Test
+    void paginationResponseReportsTheTotalAcrossAllPages() {
+        var page = new PageImpl<>(List.<BankAccount>of(), PageRequest.of(3, 10), 125);
+
+        var response = BankAccountMapper.toPaginationGrpcResponse(page);
+
+        assertEquals(125, response.getTotalElements());
+        assertEquals(13, response.getTotalPages());
+    }
+}
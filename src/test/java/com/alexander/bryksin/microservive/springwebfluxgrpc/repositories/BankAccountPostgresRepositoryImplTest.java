@@ -0,0 +1,37 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.repositories;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BankAccountPostgresRepositoryImplTest {
+
+    @Test
+    void lowestRunningTotalOfDepositsIsZero() {
+        assertEquals(0, BigDecimal.ZERO.compareTo(BankAccountPostgresRepositoryImpl.lowestRunningTotal(amounts("100", "50"))));
+    }
+
+    @Test
+    void lowestRunningTotalGuardsAWithdrawalBeforeTheDeposit() {
+        // the net amount is +50, but the withdrawal alone would overdraw a balance below 50
+        assertEquals(new BigDecimal("-50"), BankAccountPostgresRepositoryImpl.lowestRunningTotal(amounts("-50", "100")));
+    }
+
+    @Test
+    void lowestRunningTotalIsTheLowestPrefixNotTheLast() {
+        assertEquals(new BigDecimal("-80"), BankAccountPostgresRepositoryImpl.lowestRunningTotal(amounts("-30", "-50", "100", "-60")));
+    }
+
+    @Test
+    void lowestRunningTotalOfASingleWithdrawalIsTheWithdrawal() {
+        assertEquals(new BigDecimal("-25.50"), BankAccountPostgresRepositoryImpl.lowestRunningTotal(amounts("-25.50")));
+    }
+
+    private static List<BigDecimal> amounts(String... amounts) {
+        return Arrays.stream(amounts).map(BigDecimal::new).toList();
+    }
+}
@@ -0,0 +1,102 @@
+package com.alexander.bryksin.microservive.springwebfluxgrpc.services;
+
+import com.alexander.bryksin.microservive.springwebfluxgrpc.domain.BankAccount;
+import com.alexander.bryksin.microservive.springwebfluxgrpc.repositories.BankAccountRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Signal;
+import reactor.test.StepVerifier;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BalanceWriteShardsTest {
+
+    private static final Duration WINDOW = Duration.ofSeconds(5);
+
+    private final BankAccountRepository repository = mock(BankAccountRepository.class);
+    private final UUID id = UUID.randomUUID();
+    private BalanceWriteShards shards;
+
+    @AfterEach
+    void destroy() {
+        if (shards != null) shards.destroy();
+    }
+
+    @Test
+    void mergesUpdatesOfOneAccountIntoOneStatement() {
+        shards = new BalanceWriteShards(repository, true, 1, WINDOW, 3);
+        when(repository.updateBalance(id, amounts("100", "-30", "5"))).thenReturn(Mono.just(account("175")));
+
+        StepVerifier.create(Mono.zip(submit("100"), submit("-30"), submit("5")))
+                .assertNext(balances -> {
+                    assertEquals(new BigDecimal("200"), balances.getT1().getBalance());
+                    assertEquals(new BigDecimal("170"), balances.getT2().getBalance());
+                    assertEquals(new BigDecimal("175"), balances.getT3().getBalance());
+                })
+                .verifyComplete();
+        verify(repository, never()).updateBalance(any(UUID.class), any(BigDecimal.class));
+    }
+
+    @Test
+    void rejectedMergeIsAppliedOneByOne() {
+        shards = new BalanceWriteShards(repository, true, 1, WINDOW, 2);
+        when(repository.updateBalance(id, amounts("-50", "100"))).thenReturn(Mono.empty());
+        when(repository.updateBalance(id, new BigDecimal("-50"))).thenReturn(Mono.empty());
+        when(repository.updateBalance(id, new BigDecimal("100"))).thenReturn(Mono.just(account("120")));
+
+        StepVerifier.create(Mono.zip(submit("-50").map(BankAccount::getBalance).defaultIfEmpty(BigDecimal.ONE.negate()), submit("100")))
+                .assertNext(results -> {
+                    assertEquals(BigDecimal.ONE.negate(), results.getT1());
+                    assertEquals(new BigDecimal("120"), results.getT2().getBalance());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void rejectedSingleUpdateCompletesEmpty() {
+        shards = new BalanceWriteShards(repository, true, 1, WINDOW, 1);
+        when(repository.updateBalance(id, amounts("-50"))).thenReturn(Mono.empty());
+
+        assertNull(submit("-50").block(WINDOW));
+        verify(repository, never()).updateBalance(any(UUID.class), any(BigDecimal.class));
+    }
+
+    @Test
+    void failedMergeFailsEveryCaller() {
+        shards = new BalanceWriteShards(repository, true, 1, WINDOW, 2);
+        when(repository.updateBalance(any(UUID.class), anyList())).thenReturn(Mono.error(new IllegalStateException("connection lost")));
+
+        var failed = Flux.merge(submit("10").materialize(), submit("20").materialize())
+                .filter(Signal::isOnError)
+                .count();
+
+        StepVerifier.create(failed).expectNext(2L).verifyComplete();
+    }
+
+    private Mono<BankAccount> submit(String amount) {
+        return shards.submit(id, new BigDecimal(amount));
+    }
+
+    private BankAccount account(String balance) {
+        return BankAccount.builder().id(id).balance(new BigDecimal(balance)).build();
+    }
+
+    private static List<BigDecimal> amounts(String... amounts) {
+        return Arrays.stream(amounts).map(BigDecimal::new).toList();
+    }
+}